@@ -0,0 +1,26 @@
+package com.spotify.fieldmasks2.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the JMH benchmarks with the gc profiler always enabled, so allocation
+// rates are reported next to the timings. Accepts the usual JMH arguments:
+//
+//   mvn install && (cd benchmarks && mvn package)
+//   java -jar benchmarks/target/benchmarks.jar ScrubBenchmark -p shape=DEEP_NESTED
+public final class BenchmarkRunner {
+
+  private BenchmarkRunner() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+    new Runner(options).run();
+  }
+}
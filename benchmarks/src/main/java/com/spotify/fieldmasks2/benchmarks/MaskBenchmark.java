@@ -0,0 +1,106 @@
+package com.spotify.fieldmasks2.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.FieldMaskUtil;
+import com.spotify.fieldmasks2.FieldMask2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskBenchmark {
+
+  @Param
+  public Shape shape;
+
+  private Message template;
+  private Message example;
+  private ByteString serializedExample;
+  private List<String> paths;
+  private FieldMask fieldMask;
+  private FieldMask otherFieldMask;
+  private FieldMask2<Message> mask;
+  private FieldMask2<Message> otherMask;
+
+  @Setup
+  public void setup() {
+    Message message = shape.message();
+    template = message.getDefaultInstanceForType();
+    paths = shape.paths();
+    fieldMask = FieldMaskUtil.fromStringList(paths);
+    otherFieldMask = FieldMaskUtil.fromStringList(shape.otherPaths());
+    mask = FieldMask2.create(template, paths);
+    otherMask = FieldMask2.create(template, shape.otherPaths());
+    example = mask.scrub(message);
+    serializedExample = example.toByteString();
+  }
+
+  @Benchmark
+  public FieldMask2<Message> create() {
+    return FieldMask2.create(template, paths);
+  }
+
+  @Benchmark
+  public FieldMask fieldMaskUtilNormalize() {
+    return FieldMaskUtil.normalize(FieldMaskUtil.fromStringList(paths));
+  }
+
+  @Benchmark
+  public FieldMask2<Message> fromFieldMask() {
+    return FieldMask2.fromFieldMask(template, fieldMask);
+  }
+
+  @Benchmark
+  public FieldMask2<Message> fromMessage() {
+    return FieldMask2.fromMessage(example);
+  }
+
+  @Benchmark
+  public FieldMask2<Message> fromSerialized() throws InvalidProtocolBufferException {
+    return FieldMask2.fromSerialized(template, serializedExample);
+  }
+
+  @Benchmark
+  public FieldMask toFieldMask() {
+    return mask.toFieldMask();
+  }
+
+  @Benchmark
+  public FieldMask2<Message> union() {
+    return mask.union(otherMask);
+  }
+
+  @Benchmark
+  public FieldMask fieldMaskUtilUnion() {
+    return FieldMaskUtil.union(fieldMask, otherFieldMask);
+  }
+
+  @Benchmark
+  public FieldMask2<Message> intersect() {
+    return mask.intersect(otherMask);
+  }
+
+  @Benchmark
+  public FieldMask fieldMaskUtilIntersection() {
+    return FieldMaskUtil.intersection(fieldMask, otherFieldMask);
+  }
+}
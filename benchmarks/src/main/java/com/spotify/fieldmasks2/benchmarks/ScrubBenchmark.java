@@ -0,0 +1,138 @@
+package com.spotify.fieldmasks2.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.FieldMaskUtil;
+import com.google.protobuf.util.JsonFormat;
+import com.spotify.fieldmasks2.FieldMask2;
+import com.spotify.fieldmasks2.GeneratedScrubber;
+import com.spotify.fieldmasks2.JsonPrinter;
+import com.spotify.fieldmasks2.ParallelScrubber;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScrubBenchmark {
+
+  @Param
+  public Shape shape;
+
+  private Message message;
+  private ByteString serialized;
+  private byte[] output;
+  private FieldMask2<Message> mask;
+  private GeneratedScrubber<Message> generatedScrubber;
+  private ParallelScrubber<Message> parallelScrubber;
+  private FieldMask fieldMask;
+  private JsonPrinter<Message> jsonPrinter;
+  private JsonFormat.Printer jsonFormatPrinter;
+  private StringBuilder json;
+
+  @Setup
+  public void setup() {
+    message = shape.message();
+    serialized = message.toByteString();
+    output = new byte[serialized.size()];
+    mask = FieldMask2.create(message, shape.paths());
+    generatedScrubber = GeneratedScrubber.of(mask);
+    parallelScrubber = ParallelScrubber.of(mask).withThreshold(256);
+    fieldMask = FieldMaskUtil.fromStringList(shape.paths());
+    jsonPrinter = mask.jsonPrinter().omittingInsignificantWhitespace();
+    jsonFormatPrinter = JsonFormat.printer().omittingInsignificantWhitespace();
+    json = new StringBuilder();
+  }
+
+  @Benchmark
+  public Message scrub() {
+    return mask.scrub(message);
+  }
+
+  @Benchmark
+  public Message scrubGenerated() {
+    return generatedScrubber.scrub(message);
+  }
+
+  @Benchmark
+  public Message scrubParallel() {
+    return parallelScrubber.scrub(message);
+  }
+
+  @Benchmark
+  public Message merge() {
+    Message.Builder builder = message.newBuilderForType();
+    mask.merge(message, builder);
+    return builder.build();
+  }
+
+  @Benchmark
+  public Message fieldMaskUtilMerge() {
+    Message.Builder builder = message.newBuilderForType();
+    FieldMaskUtil.merge(fieldMask, message, builder);
+    return builder.build();
+  }
+
+  @Benchmark
+  public int scrubAndWrite() throws IOException {
+    CodedOutputStream out = CodedOutputStream.newInstance(output);
+    mask.scrub(message).writeTo(out);
+    return out.getTotalBytesWritten();
+  }
+
+  @Benchmark
+  public int writeScrubbed() throws IOException {
+    CodedOutputStream out = CodedOutputStream.newInstance(output);
+    mask.writeScrubbedTo(message, out);
+    return out.getTotalBytesWritten();
+  }
+
+  @Benchmark
+  public int scrubSerialized() throws IOException {
+    CodedOutputStream out = CodedOutputStream.newInstance(output);
+    mask.scrub(serialized, out);
+    return out.getTotalBytesWritten();
+  }
+
+  @Benchmark
+  public int fieldMaskUtilScrubSerialized() throws InvalidProtocolBufferException, IOException {
+    Message parsed = message.getParserForType().parseFrom(serialized);
+    Message.Builder builder = parsed.newBuilderForType();
+    FieldMaskUtil.merge(fieldMask, parsed, builder);
+    CodedOutputStream out = CodedOutputStream.newInstance(output);
+    builder.build().writeTo(out);
+    return out.getTotalBytesWritten();
+  }
+
+  @Benchmark
+  public int printJson() throws IOException {
+    json.setLength(0);
+    jsonPrinter.appendTo(message, json);
+    return json.length();
+  }
+
+  @Benchmark
+  public int jsonFormatPrintScrubbed() throws IOException {
+    json.setLength(0);
+    jsonFormatPrinter.appendTo(mask.scrub(message), json);
+    return json.length();
+  }
+}
@@ -0,0 +1,69 @@
+package com.spotify.fieldmasks2.benchmarks;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import com.spotify.fieldmasks2.FieldMask2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Keeping a few map keys or elements against scrubbing every element
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectorBenchmark {
+
+  private Struct map;
+  private FieldMask2<Struct> allValues;
+  private FieldMask2<Struct> mapKeys;
+  private Message records;
+  private FieldMask2<Message> wholeRecords;
+  private FieldMask2<Message> recordRange;
+
+  @Setup
+  public void setup() {
+    Struct.Builder builder = Struct.newBuilder();
+    for (int i = 0; i < 1000; i++) {
+      builder.putFields("key-" + i, Value.newBuilder().setStringValue("value of key " + i).build());
+    }
+    map = builder.build();
+    allValues = FieldMask2.create(map, "fields.value.string_value");
+    mapKeys = FieldMask2.create(map, "fields[\"key-1\"],fields[\"key-500\"],fields[\"missing\"]");
+    records = Shape.LARGE_REPEATED.message();
+    wholeRecords = FieldMask2.create(records, "records.id");
+    recordRange = FieldMask2.create(records, "records[0:10].id");
+  }
+
+  @Benchmark
+  public Message scrubAllValues() {
+    return allValues.scrub(map);
+  }
+
+  @Benchmark
+  public Message scrubMapKeys() {
+    return mapKeys.scrub(map);
+  }
+
+  @Benchmark
+  public Message scrubWholeRepeated() {
+    return wholeRecords.scrub(records);
+  }
+
+  @Benchmark
+  public Message scrubRange() {
+    return recordRange.scrub(records);
+  }
+}
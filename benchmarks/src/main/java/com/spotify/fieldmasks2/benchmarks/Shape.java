@@ -0,0 +1,233 @@
+package com.spotify.fieldmasks2.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public enum Shape {
+  WIDE_FLAT {
+    @Override
+    Message message() {
+      Descriptors.Descriptor descriptor = type("Wide");
+      DynamicMessage.Builder builder = DynamicMessage.newBuilder(descriptor);
+      for (Descriptors.FieldDescriptor field : descriptor.getFields()) {
+        switch (field.getJavaType()) {
+          case LONG:
+            builder.setField(field, (long) field.getNumber() * 1000003);
+            break;
+          case STRING:
+            builder.setField(field, "value of " + field.getName());
+            break;
+          case DOUBLE:
+            builder.setField(field, field.getNumber() / 7.0);
+            break;
+          default:
+            builder.setField(field, true);
+            break;
+        }
+      }
+      return builder.build();
+    }
+
+    @Override
+    List<String> paths() {
+      List<String> paths = new ArrayList<>();
+      for (int i = 0; i < 16; i++) {
+        paths.add("f" + i);
+      }
+      return paths;
+    }
+
+    @Override
+    List<String> otherPaths() {
+      List<String> paths = new ArrayList<>();
+      for (int i = 8; i < 24; i++) {
+        paths.add("f" + i);
+      }
+      return paths;
+    }
+  },
+
+  DEEP_NESTED {
+    @Override
+    Message message() {
+      Descriptors.Descriptor descriptor = type("Deep");
+      Message current = null;
+      for (int depth = 12; depth >= 0; depth--) {
+        DynamicMessage.Builder builder = DynamicMessage.newBuilder(descriptor)
+                .setField(descriptor.findFieldByName("name"), "level " + depth)
+                .setField(descriptor.findFieldByName("value"), (long) depth);
+        if (current != null) {
+          builder.setField(descriptor.findFieldByName("child"), current);
+        }
+        current = builder.build();
+      }
+      return current;
+    }
+
+    @Override
+    List<String> paths() {
+      return Arrays.asList("value", "child.value", "child.child.child.name", "child.child.child.child.child.child.child.child.name");
+    }
+
+    @Override
+    List<String> otherPaths() {
+      return Arrays.asList("name", "child.child.child", "child.child.child.child.child.child.child.child.child.child.value");
+    }
+  },
+
+  LARGE_REPEATED {
+    @Override
+    Message message() {
+      Descriptors.Descriptor batch = type("Batch");
+      Descriptors.Descriptor record = type("Record");
+      DynamicMessage.Builder builder = DynamicMessage.newBuilder(batch)
+              .setField(batch.findFieldByName("source"), "benchmark");
+      for (int i = 0; i < 1000; i++) {
+        builder.addRepeatedField(batch.findFieldByName("records"), DynamicMessage.newBuilder(record)
+                .setField(record.findFieldByName("id"), "record-" + i)
+                .setField(record.findFieldByName("timestamp"), 1_600_000_000_000L + i)
+                .setField(record.findFieldByName("payload"), "payload of record " + i)
+                .addRepeatedField(record.findFieldByName("tags"), "tag-a")
+                .addRepeatedField(record.findFieldByName("tags"), "tag-b")
+                .build());
+      }
+      return builder.build();
+    }
+
+    @Override
+    List<String> paths() {
+      return Arrays.asList("source", "records.id", "records.timestamp");
+    }
+
+    @Override
+    List<String> otherPaths() {
+      return Arrays.asList("records.id", "records.tags");
+    }
+  },
+
+  STRING_HEAVY {
+    @Override
+    Message message() {
+      Descriptors.Descriptor descriptor = type("Blob");
+      DynamicMessage.Builder builder = DynamicMessage.newBuilder(descriptor)
+              .setField(descriptor.findFieldByName("title"), repeat('t', 100))
+              .setField(descriptor.findFieldByName("body"), repeat('b', 10 * 1024))
+              .setField(descriptor.findFieldByName("data"), ByteString.copyFrom(new byte[64 * 1024]))
+              .setField(descriptor.findFieldByName("thumbnail"), ByteString.copyFrom(new byte[16 * 1024]));
+      for (int i = 0; i < 100; i++) {
+        builder.addRepeatedField(descriptor.findFieldByName("lines"), repeat('l', 80));
+      }
+      return builder.build();
+    }
+
+    @Override
+    List<String> paths() {
+      return Arrays.asList("title", "lines", "thumbnail");
+    }
+
+    @Override
+    List<String> otherPaths() {
+      return Arrays.asList("title", "body");
+    }
+  },
+
+  GENERATED {
+    @Override
+    Message message() {
+      return DescriptorProtos.getDescriptor().toProto();
+    }
+
+    @Override
+    List<String> paths() {
+      return Arrays.asList("name", "package", "message_type.name", "message_type.field.name", "message_type.field.number", "enum_type");
+    }
+
+    @Override
+    List<String> otherPaths() {
+      return Arrays.asList("name", "message_type.name", "message_type.nested_type.name");
+    }
+  };
+
+  private static final Descriptors.FileDescriptor SCHEMA = schema();
+
+  abstract Message message();
+
+  abstract List<String> paths();
+
+  abstract List<String> otherPaths();
+
+  private static Descriptors.Descriptor type(String name) {
+    return SCHEMA.findMessageTypeByName(name);
+  }
+
+  private static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  private static Descriptors.FileDescriptor schema() {
+    DescriptorProtos.DescriptorProto.Builder wide = DescriptorProtos.DescriptorProto.newBuilder().setName("Wide");
+    for (int i = 0; i < 64; i++) {
+      DescriptorProtos.FieldDescriptorProto.Type[] types = {
+              DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT64,
+              DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING,
+              DescriptorProtos.FieldDescriptorProto.Type.TYPE_DOUBLE,
+              DescriptorProtos.FieldDescriptorProto.Type.TYPE_BOOL};
+      wide.addField(field("f" + i, i + 1, types[i % types.length]));
+    }
+
+    DescriptorProtos.FileDescriptorProto file = DescriptorProtos.FileDescriptorProto.newBuilder()
+            .setName("benchmarks.proto")
+            .setPackage("fieldmasks2.benchmarks")
+            .setSyntax("proto3")
+            .addMessageType(wide)
+            .addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+                    .setName("Deep")
+                    .addField(field("name", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING))
+                    .addField(field("value", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT64))
+                    .addField(field("child", 3, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE).setTypeName("Deep")))
+            .addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+                    .setName("Record")
+                    .addField(field("id", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING))
+                    .addField(field("timestamp", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT64))
+                    .addField(field("payload", 3, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING))
+                    .addField(repeated(field("tags", 4, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING))))
+            .addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+                    .setName("Batch")
+                    .addField(repeated(field("records", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE).setTypeName("Record")))
+                    .addField(field("source", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING)))
+            .addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+                    .setName("Blob")
+                    .addField(field("title", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING))
+                    .addField(field("body", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING))
+                    .addField(field("data", 3, DescriptorProtos.FieldDescriptorProto.Type.TYPE_BYTES))
+                    .addField(repeated(field("lines", 4, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING)))
+                    .addField(field("thumbnail", 5, DescriptorProtos.FieldDescriptorProto.Type.TYPE_BYTES)))
+            .build();
+    try {
+      return Descriptors.FileDescriptor.buildFrom(file, new Descriptors.FileDescriptor[0]);
+    } catch (Descriptors.DescriptorValidationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static DescriptorProtos.FieldDescriptorProto.Builder field(String name, int number, DescriptorProtos.FieldDescriptorProto.Type type) {
+    return DescriptorProtos.FieldDescriptorProto.newBuilder()
+            .setName(name)
+            .setNumber(number)
+            .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL)
+            .setType(type);
+  }
+
+  private static DescriptorProtos.FieldDescriptorProto.Builder repeated(DescriptorProtos.FieldDescriptorProto.Builder field) {
+    return field.setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED);
+  }
+}
@@ -0,0 +1,63 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.Executor;
+
+// Scrubs many messages against one mask. The keep-all/keep-none checks, the
+// plan lookup and a builder pool are shared by every message in a chunk, and
+// with an executor the batch is split into contiguous chunks whose results are
+// written in place, so order is kept.
+final class BatchScrubber {
+
+  private static final int MIN_CHUNK_SIZE = 64;
+
+  private BatchScrubber() {
+  }
+
+  static List<Message> scrubAll(FieldMask2<Message> mask, Iterable<? extends Message> messages, Executor executor) {
+    List<? extends Message> input = toList(messages);
+    Message[] scrubbed = new Message[input.size()];
+    int count = scrubbed.length;
+    int parallelism = executor == null ? 1 : Chunks.parallelism(executor);
+    int chunkSize = Chunks.chunkSize(count, parallelism, MIN_CHUNK_SIZE);
+    if (parallelism < 2 || count <= chunkSize) {
+      scrubRange(mask, input, scrubbed, 0, count);
+    } else {
+      Chunks.run(count, chunkSize, executor, (from, to) -> scrubRange(mask, input, scrubbed, from, to));
+    }
+    return Arrays.asList(scrubbed);
+  }
+
+  private static void scrubRange(FieldMask2<Message> mask, List<? extends Message> input, Message[] scrubbed, int from, int to) {
+    BuilderPool builders = new BuilderPool();
+    // The listener wants an event per message
+    if (mask.isKeepAll() || mask.isKeepNone() || mask.listener() != null) {
+      for (int i = from; i < to; i++) {
+        scrubbed[i] = mask.scrub(input.get(i), builders);
+      }
+      return;
+    }
+    ScrubPlan plan = mask.plan();
+    for (int i = from; i < to; i++) {
+      Message message = input.get(i);
+      mask.checkCompatible(message.getDescriptorForType());
+      scrubbed[i] = plan.scrub(message, builders);
+    }
+  }
+
+  private static List<? extends Message> toList(Iterable<? extends Message> messages) {
+    if (messages instanceof List && messages instanceof RandomAccess) {
+      return (List<? extends Message>) messages;
+    }
+    List<Message> list = new ArrayList<>();
+    for (Message message : messages) {
+      list.add(message);
+    }
+    return list;
+  }
+}
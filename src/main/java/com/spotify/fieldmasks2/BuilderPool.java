@@ -0,0 +1,74 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Builders that FieldMask2.scrub(message, pool) clears and reuses instead of
+// allocating a new one per scrubbed message. Builders are kept per generated
+// message class, or per descriptor for dynamic messages, and handed out like a
+// stack, so a scrub that recurses into a message of the same type gets a
+// builder of its own. A pool keeps the builders of the most recently used
+// types only, so descriptors built at runtime don't stay reachable through a
+// long-lived thread's pool. A pool is not thread safe: either give every
+// thread its own or use threadLocal().
+public final class BuilderPool {
+
+  private static final ThreadLocal<BuilderPool> THREAD_LOCAL = ThreadLocal.withInitial(BuilderPool::new);
+  private static final int MAX_TYPES = 64;
+  // Deeper recursion into one type allocates the builders it lacks
+  private static final int MAX_BUILDERS_PER_TYPE = 16;
+
+  // Least recently used type first
+  private final Map<Object, ArrayDeque<Message.Builder>> free = new LinkedHashMap<Object, ArrayDeque<Message.Builder>>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Object, ArrayDeque<Message.Builder>> eldest) {
+      return size() > MAX_TYPES;
+    }
+  };
+
+  public BuilderPool() {
+  }
+
+  public static BuilderPool threadLocal() {
+    return THREAD_LOCAL.get();
+  }
+
+  static Message.Builder acquire(BuilderPool pool, Message message) {
+    return pool == null ? message.newBuilderForType() : pool.acquire(message);
+  }
+
+  static Message build(BuilderPool pool, Message.Builder builder) {
+    Message message = builder.build();
+    if (pool != null) {
+      pool.release(builder);
+    }
+    return message;
+  }
+
+  private Message.Builder acquire(Message message) {
+    ArrayDeque<Message.Builder> builders = free.get(key(message));
+    Message.Builder builder = builders == null ? null : builders.pollLast();
+    return builder == null ? message.newBuilderForType() : builder;
+  }
+
+  private void release(Message.Builder builder) {
+    ArrayDeque<Message.Builder> builders = free.computeIfAbsent(key(builder), key -> new ArrayDeque<>());
+    if (builders.size() < MAX_BUILDERS_PER_TYPE) {
+      builder.clear();
+      builders.addLast(builder);
+    }
+  }
+
+  // Generated and dynamic messages of the same type share a descriptor, but not a builder class
+  private static Object key(Message message) {
+    return message instanceof DynamicMessage ? message.getDescriptorForType() : message.getClass();
+  }
+
+  private static Object key(Message.Builder builder) {
+    return builder instanceof DynamicMessage.Builder ? builder.getDescriptorForType() : builder.getDefaultInstanceForType().getClass();
+  }
+}
@@ -0,0 +1,56 @@
+package com.spotify.fieldmasks2;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+// Splits a run of elements into contiguous chunks scrubbed on an executor,
+// for BatchScrubber and ParallelScrubber.
+final class Chunks {
+
+  // More chunks than threads evens out elements of uneven size
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private Chunks() {
+  }
+
+  interface Range {
+    void run(int from, int to);
+  }
+
+  static int parallelism(Executor executor) {
+    return executor instanceof ForkJoinPool
+            ? ((ForkJoinPool) executor).getParallelism()
+            : Runtime.getRuntime().availableProcessors();
+  }
+
+  static int chunkSize(int count, int parallelism, int minChunkSize) {
+    return Math.max(minChunkSize, ceilDiv(count, parallelism * CHUNKS_PER_THREAD));
+  }
+
+  // Runs range over [0, count) and rethrows what a chunk threw, unwrapped
+  static void run(int count, int chunkSize, Executor executor, Range range) {
+    int chunks = ceilDiv(count, chunkSize);
+    // The calling thread takes the first chunk itself instead of only waiting
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[Math.max(0, chunks - 1)];
+    for (int i = 1; i < chunks; i++) {
+      int from = i * chunkSize;
+      int to = Math.min(count, from + chunkSize);
+      futures[i - 1] = CompletableFuture.runAsync(() -> range.run(from, to), executor);
+    }
+    range.run(0, Math.min(count, chunkSize));
+    try {
+      CompletableFuture.allOf(futures).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static int ceilDiv(int x, int y) {
+    return (x + y - 1) / y;
+  }
+}
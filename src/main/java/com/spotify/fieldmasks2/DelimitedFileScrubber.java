@@ -0,0 +1,313 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+// Scrubs files of length-delimited records, as written by writeDelimitedTo,
+// without parsing the records into messages. The input is memory mapped a
+// region at a time, cut into batches of whole records that are scrubbed on
+// the wire format by the executor, and the batches are written in input order.
+public final class DelimitedFileScrubber {
+
+  private static final int DEFAULT_BATCH_SIZE = 1 << 20;
+  private static final int DEFAULT_REGION_SIZE = 256 << 20;
+  private static final int MAX_VARINT32_SIZE = 5;
+
+  private final FieldMask2<?> mask;
+  private final Executor executor;
+  private final int parallelism;
+  private final int batchSize;
+  private final int regionSize;
+
+  private DelimitedFileScrubber(FieldMask2<?> mask, Executor executor, int batchSize, int regionSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+    }
+    if (regionSize < MAX_VARINT32_SIZE) {
+      throw new IllegalArgumentException("regionSize must be at least " + MAX_VARINT32_SIZE + ": " + regionSize);
+    }
+    this.mask = mask;
+    this.executor = executor;
+    this.parallelism = executor instanceof ForkJoinPool
+            ? ((ForkJoinPool) executor).getParallelism()
+            : Runtime.getRuntime().availableProcessors();
+    this.batchSize = batchSize;
+    this.regionSize = regionSize;
+  }
+
+  public static DelimitedFileScrubber of(FieldMask2<?> mask) {
+    return new DelimitedFileScrubber(mask, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE, DEFAULT_REGION_SIZE);
+  }
+
+  // For record types that are only known at runtime, like in the command line tool
+  public static DelimitedFileScrubber of(DescriptorProtos.FileDescriptorSet files, String messageType, String paths) {
+    Descriptors.Descriptor descriptor = findMessageType(files, messageType);
+    return of(FieldMask2.create(DynamicMessage.getDefaultInstance(descriptor), paths));
+  }
+
+  public DelimitedFileScrubber withExecutor(Executor executor) {
+    return new DelimitedFileScrubber(mask, executor, batchSize, regionSize);
+  }
+
+  // Input bytes per task. A batch always holds at least one whole record.
+  public DelimitedFileScrubber withBatchSize(int batchSize) {
+    return new DelimitedFileScrubber(mask, executor, batchSize, regionSize);
+  }
+
+  DelimitedFileScrubber withRegionSize(int regionSize) {
+    return new DelimitedFileScrubber(mask, executor, batchSize, regionSize);
+  }
+
+  public FieldMask2<?> getMask() {
+    return mask;
+  }
+
+  // Returns the number of records
+  public long scrub(Path input, Path output) throws IOException {
+    try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+         FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      long size = in.size();
+      long position = 0;
+      long records = 0;
+      int minRegionSize = 0;
+      // Bounds the memory held by finished batches that wait for an earlier one
+      int maxPending = 2 * parallelism;
+      ArrayDeque<CompletableFuture<ByteBuffer>> pending = new ArrayDeque<>();
+      while (position < size) {
+        long remaining = size - position;
+        int length = (int) Math.min(Math.max(regionSize, minRegionSize), remaining);
+        ByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+        minRegionSize = 0;
+        int end = 0;
+        int batchStart = 0;
+        while (end < length) {
+          int recordEnd = recordEnd(region, end);
+          if (recordEnd < 0 || recordEnd > length) {
+            if (length == remaining) {
+              throw new InvalidProtocolBufferException("Truncated record at offset " + (position + end));
+            }
+            if (end == 0) {
+              // The record is larger than a region, so map one that fits it
+              minRegionSize = recordEnd < 0 ? length + MAX_VARINT32_SIZE : recordEnd;
+            }
+            break;
+          }
+          end = recordEnd;
+          records++;
+          if (end - batchStart >= batchSize) {
+            submit(pending, slice(region, batchStart, end), out, maxPending);
+            batchStart = end;
+          }
+        }
+        if (end > batchStart) {
+          submit(pending, slice(region, batchStart, end), out, maxPending);
+        }
+        position += end;
+      }
+      while (!pending.isEmpty()) {
+        write(pending.poll(), out);
+      }
+      return records;
+    }
+  }
+
+  private void submit(ArrayDeque<CompletableFuture<ByteBuffer>> pending, ByteBuffer batch, FileChannel out, int maxPending) throws IOException {
+    pending.add(CompletableFuture.supplyAsync(() -> scrubBatch(batch), executor));
+    while (pending.size() > maxPending) {
+      write(pending.poll(), out);
+    }
+  }
+
+  private static void write(CompletableFuture<ByteBuffer> batch, FileChannel out) throws IOException {
+    ByteBuffer scrubbed;
+    try {
+      scrubbed = batch.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+    while (scrubbed.hasRemaining()) {
+      out.write(scrubbed);
+    }
+  }
+
+  private ByteBuffer scrubBatch(ByteBuffer batch) {
+    try {
+      return mask.isSelective() ? scrubParsedBatch(batch) : scrubWireBatch(batch);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Without selectors, scrubbed records are never longer than their input, so
+  // a batch and every record in it fit in buffers of the input size.
+  private ByteBuffer scrubWireBatch(ByteBuffer batch) throws IOException {
+    byte[] output = new byte[batch.remaining()];
+    CodedOutputStream out = CodedOutputStream.newInstance(output);
+    byte[] record = new byte[0];
+    CodedInputStream in = CodedInputStream.newInstance(batch);
+    while (!in.isAtEnd()) {
+      int length = in.readRawVarint32();
+      if (record.length < length) {
+        record = new byte[length];
+      }
+      int oldLimit = in.pushLimit(length);
+      CodedOutputStream recordOut = CodedOutputStream.newInstance(record, 0, length);
+      mask.scrub(in, recordOut);
+      in.popLimit(oldLimit);
+      out.writeUInt32NoTag(recordOut.getTotalBytesWritten());
+      out.writeRawBytes(record, 0, recordOut.getTotalBytesWritten());
+    }
+    return ByteBuffer.wrap(output, 0, out.getTotalBytesWritten());
+  }
+
+  // Masks with selectors parse every record, and the scrubbed records can be
+  // longer than their input, so the output is sized from the scrubbed records.
+  private ByteBuffer scrubParsedBatch(ByteBuffer batch) throws IOException {
+    List<Message> records = new ArrayList<>();
+    int size = 0;
+    CodedInputStream in = CodedInputStream.newInstance(batch);
+    while (!in.isAtEnd()) {
+      int oldLimit = in.pushLimit(in.readRawVarint32());
+      Message record = mask.scrubParsed(in);
+      in.popLimit(oldLimit);
+      records.add(record);
+      size += CodedOutputStream.computeUInt32SizeNoTag(record.getSerializedSize()) + record.getSerializedSize();
+    }
+    byte[] output = new byte[size];
+    CodedOutputStream out = CodedOutputStream.newInstance(output);
+    for (Message record : records) {
+      out.writeUInt32NoTag(record.getSerializedSize());
+      record.writeTo(out);
+    }
+    return ByteBuffer.wrap(output);
+  }
+
+  // The end of the record at offset, or -1 when its length prefix runs past the region
+  private static int recordEnd(ByteBuffer region, int offset) throws InvalidProtocolBufferException {
+    int length = 0;
+    for (int i = 0; i < MAX_VARINT32_SIZE; i++) {
+      if (offset + i >= region.limit()) {
+        return -1;
+      }
+      byte b = region.get(offset + i);
+      length |= (b & 0x7F) << (7 * i);
+      if (b >= 0) {
+        if (length < 0) {
+          throw new InvalidProtocolBufferException("Negative record length");
+        }
+        long end = (long) offset + i + 1 + length;
+        if (end > Integer.MAX_VALUE) {
+          throw new InvalidProtocolBufferException("Record is too large");
+        }
+        return (int) end;
+      }
+    }
+    throw new InvalidProtocolBufferException("Malformed record length");
+  }
+
+  private static ByteBuffer slice(ByteBuffer region, int from, int to) {
+    ByteBuffer slice = region.duplicate();
+    slice.position(from);
+    slice.limit(to);
+    return slice.slice();
+  }
+
+  static Descriptors.Descriptor findMessageType(DescriptorProtos.FileDescriptorSet files, String messageType) {
+    Map<String, DescriptorProtos.FileDescriptorProto> protos = new HashMap<>();
+    for (DescriptorProtos.FileDescriptorProto file : files.getFileList()) {
+      protos.put(file.getName(), file);
+    }
+    Map<String, Descriptors.FileDescriptor> built = new HashMap<>();
+    for (DescriptorProtos.FileDescriptorProto file : files.getFileList()) {
+      Descriptors.Descriptor descriptor = findMessageType(build(file, protos, built).getMessageTypes(), messageType);
+      if (descriptor != null) {
+        return descriptor;
+      }
+    }
+    throw new IllegalArgumentException("Message type " + messageType + " is not in the descriptor set");
+  }
+
+  private static Descriptors.Descriptor findMessageType(List<Descriptors.Descriptor> descriptors, String messageType) {
+    for (Descriptors.Descriptor descriptor : descriptors) {
+      if (descriptor.getFullName().equals(messageType)) {
+        return descriptor;
+      }
+      Descriptors.Descriptor nested = findMessageType(descriptor.getNestedTypes(), messageType);
+      if (nested != null) {
+        return nested;
+      }
+    }
+    return null;
+  }
+
+  private static Descriptors.FileDescriptor build(DescriptorProtos.FileDescriptorProto file,
+                                                  Map<String, DescriptorProtos.FileDescriptorProto> protos,
+                                                  Map<String, Descriptors.FileDescriptor> built) {
+    Descriptors.FileDescriptor descriptor = built.get(file.getName());
+    if (descriptor != null) {
+      return descriptor;
+    }
+    Descriptors.FileDescriptor[] dependencies = new Descriptors.FileDescriptor[file.getDependencyCount()];
+    for (int i = 0; i < dependencies.length; i++) {
+      DescriptorProtos.FileDescriptorProto dependency = protos.get(file.getDependency(i));
+      if (dependency == null) {
+        throw new IllegalArgumentException("Dependency " + file.getDependency(i) + " of " + file.getName() + " is not in the descriptor set");
+      }
+      dependencies[i] = build(dependency, protos, built);
+    }
+    try {
+      descriptor = Descriptors.FileDescriptor.buildFrom(file, dependencies);
+    } catch (Descriptors.DescriptorValidationException e) {
+      throw new IllegalArgumentException("Invalid descriptor set: " + e.getMessage(), e);
+    }
+    built.put(file.getName(), descriptor);
+    return descriptor;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 5 || args.length > 6) {
+      System.err.println("Usage: DelimitedFileScrubber <descriptor set> <message type> <paths> <input> <output> [threads]");
+      System.exit(2);
+    }
+    DescriptorProtos.FileDescriptorSet files = DescriptorProtos.FileDescriptorSet.parseFrom(Files.readAllBytes(Paths.get(args[0])));
+    int threads = args.length == 6 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      long records = of(files, args[1], args[2]).withExecutor(executor).scrub(Paths.get(args[3]), Paths.get(args[4]));
+      System.out.println("Scrubbed " + records + " records");
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
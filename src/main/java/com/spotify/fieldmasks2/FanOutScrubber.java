@@ -0,0 +1,161 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Scrubs one message against many masks in a single walk. Equal masks share
+// one result, and every field is read once no matter how many masks keep it.
+final class FanOutScrubber {
+
+  private FanOutScrubber() {
+  }
+
+  static List<Message> scrubAll(Message message, List<FieldMask2<Message>> masks) {
+    boolean reported = false;
+    for (FieldMask2<Message> mask : masks) {
+      reported |= mask.listener() != null;
+    }
+    if (!reported) {
+      return scrubNested(message, masks);
+    }
+    long start = System.nanoTime();
+    List<Message> scrubbed = scrubNested(message, masks);
+    long nanos = System.nanoTime() - start;
+    // Once per mask instance, each with the duration of the whole shared walk
+    Set<FieldMask2<Message>> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (int i = 0; i < masks.size(); i++) {
+      FieldMask2<Message> mask = masks.get(i);
+      ScrubListener listener = mask.listener();
+      if (listener != null && seen.add(mask)) {
+        listener.onScrub(mask, ScrubEvent.scrub(mask, message, scrubbed.get(i), nanos));
+      }
+    }
+    return scrubbed;
+  }
+
+  private static List<Message> scrubNested(Message message, List<FieldMask2<Message>> masks) {
+    Map<FieldMask2<Message>, Integer> distinctIndex = new HashMap<>();
+    List<FieldMask2<Message>> distinct = new ArrayList<>();
+    int[] slots = new int[masks.size()];
+    for (int i = 0; i < slots.length; i++) {
+      FieldMask2<Message> mask = masks.get(i);
+      Integer index = distinctIndex.get(mask);
+      if (index == null) {
+        index = distinct.size();
+        distinctIndex.put(mask, index);
+        distinct.add(mask);
+      }
+      slots[i] = index;
+    }
+
+    Message[] results = new Message[distinct.size()];
+    Message.Builder[] builders = new Message.Builder[distinct.size()];
+    // Like ScrubPlan.scrub, a mask hands back the message itself unless it drops something here or below
+    boolean[] changed = new boolean[distinct.size()];
+    Map<Descriptors.FieldDescriptor, FieldGroup> groups = new LinkedHashMap<>();
+    for (int i = 0; i < results.length; i++) {
+      FieldMask2<Message> mask = distinct.get(i);
+      if (mask.isKeepAll()) {
+        results[i] = message;
+      } else if (mask.isKeepNone()) {
+        results[i] = message.getDefaultInstanceForType();
+      } else {
+        mask.checkCompatible(message.getDescriptorForType());
+        ScrubPlan plan = mask.plan();
+        changed[i] = plan.hasDroppedFields(message);
+        if (changed[i] && !plan.hasKeptFields(message)) {
+          results[i] = message.getDefaultInstanceForType();
+          continue;
+        }
+        builders[i] = message.newBuilderForType();
+        for (ScrubPlan.Op op : plan.ops) {
+          groups.computeIfAbsent(op.field, FieldGroup::new).add(i, op);
+        }
+      }
+    }
+
+    for (FieldGroup group : groups.values()) {
+      group.merge(message, builders, changed);
+    }
+
+    for (int i = 0; i < results.length; i++) {
+      if (builders[i] != null) {
+        results[i] = changed[i] ? builders[i].build() : message;
+      }
+    }
+    List<Message> scrubbed = new ArrayList<>(slots.length);
+    for (int slot : slots) {
+      scrubbed.add(results[slot]);
+    }
+    return scrubbed;
+  }
+
+  private static final class FieldGroup {
+    private final Descriptors.FieldDescriptor field;
+    private final List<Integer> copying = new ArrayList<>();
+    private final List<Integer> recursing = new ArrayList<>();
+    private final List<FieldMask2<Message>> childMasks = new ArrayList<>();
+    private final List<Integer> selecting = new ArrayList<>();
+    private final List<ScrubPlan.Op> selectOps = new ArrayList<>();
+
+    private FieldGroup(Descriptors.FieldDescriptor field) {
+      this.field = field;
+    }
+
+    void add(int builderIndex, ScrubPlan.Op op) {
+      if (op.kind == ScrubPlan.Kind.SELECT) {
+        selecting.add(builderIndex);
+        selectOps.add(op);
+      } else if (op.kind == ScrubPlan.Kind.RECURSE_MESSAGE || op.kind == ScrubPlan.Kind.RECURSE_REPEATED) {
+        recursing.add(builderIndex);
+        childMasks.add(op.child);
+      } else {
+        copying.add(builderIndex);
+      }
+    }
+
+    void merge(Message message, Message.Builder[] builders, boolean[] changed) {
+      // Selectors keep different elements per mask, so those masks don't share the walk
+      for (int i = 0; i < selecting.size(); i++) {
+        selectOps.get(i).merge(message, builders[selecting.get(i)]);
+      }
+      if (field.isRepeated()) {
+        int count = message.getRepeatedFieldCount(field);
+        for (int i = 0; i < count; i++) {
+          Object value = message.getRepeatedField(field, i);
+          for (int builderIndex : copying) {
+            builders[builderIndex].addRepeatedField(field, value);
+          }
+          if (!recursing.isEmpty()) {
+            List<Message> scrubbed = scrubNested((Message) value, childMasks);
+            for (int j = 0; j < scrubbed.size(); j++) {
+              builders[recursing.get(j)].addRepeatedField(field, scrubbed.get(j));
+              changed[recursing.get(j)] |= scrubbed.get(j) != value;
+            }
+          }
+        }
+      } else if (message.hasField(field)) {
+        Object value = message.getField(field);
+        for (int builderIndex : copying) {
+          builders[builderIndex].setField(field, value);
+        }
+        if (!recursing.isEmpty()) {
+          List<Message> scrubbed = scrubNested((Message) value, childMasks);
+          for (int j = 0; j < scrubbed.size(); j++) {
+            builders[recursing.get(j)].setField(field, scrubbed.get(j));
+            changed[recursing.get(j)] |= scrubbed.get(j) != value;
+          }
+        }
+      }
+    }
+  }
+}
@@ -1,38 +1,213 @@
 package com.spotify.fieldmasks2;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.FieldMask;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
 
 public class FieldMask2<T extends Message> {
 
-  private static final FieldMask2<Message> KEEP_NONE = new FieldMask2<>(Collections.emptyMap(), Collections.emptySet(), false, true, null);
-  private static final FieldMask2<Message> KEEP_ALL = new FieldMask2<>(Collections.emptyMap(), Collections.emptySet(), true, false, null);
+  private static final long[] NO_BITS = new long[0];
+  // Weakly held nodes, looked up without a global lock. Collected nodes are dropped on the next intern.
+  private static final ConcurrentHashMap<Interned, Interned> INTERNED = new ConcurrentHashMap<>();
+  private static final ReferenceQueue<FieldMask2<?>> COLLECTED = new ReferenceQueue<>();
+  // Read once per scrub and merge call of a mask without its own listener, so an unset listener costs a volatile read
+  private static volatile ScrubListener listener;
 
-  private final Map<Descriptors.FieldDescriptor, FieldMask2<Message>> subMessageMasks;
-  private final Set<Descriptors.FieldDescriptor> primitiveMasks;
+  private final Descriptors.Descriptor messageDescriptor;
+  // Kept fields by FieldDescriptor.getIndex(). Kept message fields also have their sub-mask in children.
+  private final long[] fieldBits;
+  private final FieldMask2<Message>[] children;
+  // Kept repeated fields that only keep some keys or elements, null when no field does.
+  // A selected field has its bit set, and the selector holds its element masks instead of children.
+  private final Selector[] selectors;
+  // This node or one below it has selectors
+  private final boolean selective;
   private final boolean keepAll;
   private final boolean keepNone;
-  private final Descriptors.Descriptor messageDescriptor;
+  private final int hashCode;
+  // Set only on the copies made by withListener, which are never interned
+  private final ScrubListener maskListener;
+  private ScrubPlan plan;
 
-  private FieldMask2(Map<Descriptors.FieldDescriptor, FieldMask2<Message>> subMessageMasks, Set<Descriptors.FieldDescriptor> primitiveMasks, boolean keepAll, boolean keepNone, Descriptors.Descriptor messageDescriptor) {
-    this.subMessageMasks = subMessageMasks;
-    this.primitiveMasks = primitiveMasks;
+  private FieldMask2(Descriptors.Descriptor messageDescriptor, long[] fieldBits, FieldMask2<Message>[] children, Selector[] selectors, boolean keepAll, boolean keepNone) {
+    this.messageDescriptor = messageDescriptor;
+    this.fieldBits = fieldBits;
+    this.children = children;
+    this.selectors = selectors;
+    this.selective = selectors != null || anySelective(children);
     this.keepAll = keepAll;
     this.keepNone = keepNone;
-    this.messageDescriptor = messageDescriptor;
+    this.hashCode = computeHashCode();
+    this.maskListener = null;
+  }
+
+  private FieldMask2(FieldMask2<T> mask, ScrubListener maskListener) {
+    this.messageDescriptor = mask.messageDescriptor;
+    this.fieldBits = mask.fieldBits;
+    this.children = mask.children;
+    this.selectors = mask.selectors;
+    this.selective = mask.selective;
+    this.keepAll = mask.keepAll;
+    this.keepNone = mask.keepNone;
+    this.hashCode = mask.hashCode;
+    this.maskListener = maskListener;
+    this.plan = mask.plan;
+  }
+
+  private static boolean anySelective(FieldMask2<Message>[] children) {
+    if (children != null) {
+      for (FieldMask2<Message> child : children) {
+        if (child != null && child.selective) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  static FieldMask2<Message> keepAll(Descriptors.Descriptor descriptor) {
+    return intern(new FieldMask2<>(descriptor, NO_BITS, null, null, true, false));
+  }
+
+  static FieldMask2<Message> keepNone(Descriptors.Descriptor descriptor) {
+    return intern(new FieldMask2<>(descriptor, NO_BITS, null, null, false, true));
+  }
+
+  static FieldMask2<Message> of(Descriptors.Descriptor descriptor, long[] fieldBits, FieldMask2<Message>[] children) {
+    return of(descriptor, fieldBits, children, null);
+  }
+
+  // Every node goes through here: nodes that keep nothing or every field are
+  // normalized, and structurally equal nodes are shared, so children can be
+  // compared by reference. Selectors may be null, and so may every entry.
+  static FieldMask2<Message> of(Descriptors.Descriptor descriptor, long[] fieldBits, FieldMask2<Message>[] children, Selector[] selectors) {
+    if (selectors != null && Arrays.stream(selectors).allMatch(Objects::isNull)) {
+      selectors = null;
+    }
+    int kept = 0;
+    for (long word : fieldBits) {
+      kept += Long.bitCount(word);
+    }
+    if (kept == 0) {
+      return keepNone(descriptor);
+    }
+    if (kept == descriptor.getFields().size() && selectors == null) {
+      boolean keepsAll = true;
+      for (FieldMask2<Message> child : children) {
+        if (child != null && !child.keepAll) {
+          keepsAll = false;
+          break;
+        }
+      }
+      // Keeping every field means scrub can hand back those subtrees without copying them
+      if (keepsAll) {
+        return keepAll(descriptor);
+      }
+    }
+    return intern(new FieldMask2<>(descriptor, fieldBits, children, selectors, false, false));
+  }
+
+  private static FieldMask2<Message> intern(FieldMask2<Message> mask) {
+    Object collected;
+    while ((collected = COLLECTED.poll()) != null) {
+      INTERNED.remove(collected);
+    }
+    Interned key = new Interned(mask);
+    while (true) {
+      Interned existing = INTERNED.putIfAbsent(key, key);
+      if (existing == null) {
+        return mask;
+      }
+      FieldMask2<?> interned = existing.get();
+      if (interned != null) {
+        return (FieldMask2<Message>) interned;
+      }
+      // Collected after the lookup, so it is replaced
+      INTERNED.remove(existing, existing);
+    }
+  }
+
+  // Found by equality instead of identity: equal to keys of equal live nodes
+  private static final class Interned extends WeakIdentityKey<FieldMask2<?>> {
+    private Interned(FieldMask2<?> mask) {
+      super(mask, COLLECTED, mask.hashCode);
+    }
+
+    @Override
+    boolean matches(FieldMask2<?> mask, Object other) {
+      return mask.equals(other);
+    }
+  }
+
+  static long[] newFieldBits(Descriptors.Descriptor descriptor) {
+    return new long[(descriptor.getFields().size() + 63) >>> 6];
+  }
+
+  static FieldMask2<Message>[] newChildren(Descriptors.Descriptor descriptor) {
+    return (FieldMask2<Message>[]) new FieldMask2[descriptor.getFields().size()];
+  }
+
+  private static Selector[] newSelectors(FieldMask2<Message> mask) {
+    return mask.selectors == null ? null : new Selector[mask.selectors.length];
+  }
+
+  static boolean isSet(long[] bits, int index) {
+    int word = index >>> 6;
+    return word < bits.length && (bits[word] & (1L << index)) != 0;
+  }
+
+  static void set(long[] bits, int index) {
+    bits[index >>> 6] |= 1L << index;
+  }
+
+  private static void clear(long[] bits, int index) {
+    bits[index >>> 6] &= ~(1L << index);
   }
 
   public T scrub(T message) {
+    return scrub(message, (BuilderPool) null);
+  }
+
+  // Like scrub, but takes builders from the pool instead of allocating one per scrubbed message
+  public T scrub(T message, BuilderPool builders) {
+    ScrubListener listener = listener();
+    if (listener != null) {
+      long start = System.nanoTime();
+      T scrubbed = scrubNested(message, builders);
+      long nanos = System.nanoTime() - start;
+      listener.onScrub(this, ScrubEvent.scrub((FieldMask2<Message>) this, message, scrubbed, nanos));
+      return scrubbed;
+    }
+    return scrubNested(message, builders);
+  }
+
+  // Scrubs without reporting to the listener, for scrubs that are part of a larger one
+  T scrubNested(T message, BuilderPool builders) {
     if (keepAll) {
       return message;
     }
@@ -41,15 +216,40 @@ public class FieldMask2<T extends Message> {
     }
     checkCompatible(message.getDescriptorForType());
 
-    Message.Builder builder = message.newBuilderForType();
-    mergeInner(message, builder);
-    return (T) builder.build();
+    return (T) plan().scrub(message, builders);
+  }
+
+  public List<T> scrubAll(Iterable<T> messages) {
+    return (List<T>) BatchScrubber.scrubAll((FieldMask2<Message>) this, messages, null);
+  }
+
+  // Scrubs in contiguous chunks on the executor, see ScrubExecutors. The result keeps the input order.
+  public List<T> scrubAll(Iterable<T> messages, Executor executor) {
+    return (List<T>) BatchScrubber.scrubAll((FieldMask2<Message>) this, messages, executor);
+  }
+
+  // Lazy, and parallel on the common pool when the stream is parallel
+  public Stream<T> scrub(Stream<T> messages) {
+    return messages.map(message -> scrub(message));
+  }
+
+  public static <T extends Message> List<T> scrubAll(T message, List<FieldMask2<T>> masks) {
+    return (List<T>) FanOutScrubber.scrubAll(message, (List) masks);
   }
 
   public void merge(T message, Message.Builder builder) {
-    if (messageDescriptor == null) {
-      throw new IllegalArgumentException("Can't use merge with internal field masks");
+    ScrubListener listener = listener();
+    if (listener != null) {
+      long start = System.nanoTime();
+      mergeNested(message, builder);
+      long nanos = System.nanoTime() - start;
+      listener.onScrub(this, ScrubEvent.merge((FieldMask2<Message>) this, message, nanos));
+      return;
     }
+    mergeNested(message, builder);
+  }
+
+  private void mergeNested(T message, Message.Builder builder) {
     checkCompatible(builder.getDescriptorForType());
 
     if (keepAll) {
@@ -64,47 +264,357 @@ public class FieldMask2<T extends Message> {
     mergeInner(message, builder);
   }
 
-  private void checkCompatible(Descriptors.Descriptor otherDescriptor) {
+  // Reports every scrub and merge call on a FieldMask2 without its own listener from now on, null stops reporting
+  public static void setListener(ScrubListener listener) {
+    FieldMask2.listener = listener;
+  }
+
+  // An equal mask that reports its own scrub and merge calls to the listener instead of the one
+  // installed with setListener. Masks built from it by union, intersect and the like do not.
+  public FieldMask2<T> withListener(ScrubListener listener) {
+    return new FieldMask2<>(this, listener);
+  }
+
+  // Null when this mask's calls are not reported
+  ScrubListener listener() {
+    return maskListener != null ? maskListener : FieldMask2.listener;
+  }
+
+  void checkCompatible(Descriptors.Descriptor otherDescriptor) {
     if (messageDescriptor != otherDescriptor) {
       throw new IllegalArgumentException("Other descriptor is not compatible. Expected " + messageDescriptor.getFullName() + " but got " + otherDescriptor.getFullName());
     }
   }
 
   private void mergeInner(T message, Message.Builder builder) {
-    for (Map.Entry<Descriptors.FieldDescriptor, FieldMask2<Message>> entry : subMessageMasks.entrySet()) {
-      Descriptors.FieldDescriptor field = entry.getKey();
-      FieldMask2<Message> subMask = entry.getValue();
-      if (field.isRepeated()) {
-        int count = message.getRepeatedFieldCount(field);
-        for (int i = 0; i < count; i++) {
-          Message value = (Message) message.getRepeatedField(field, i);
-          builder.addRepeatedField(field, subMask.scrub(value));
+    for (ScrubPlan.Op op : plan().ops) {
+      op.merge(message, builder);
+    }
+  }
+
+  // Racy single-check like String.hashCode: the plan only has final fields, so a
+  // duplicate compile is harmless and publication is safe without volatile.
+  ScrubPlan plan() {
+    ScrubPlan plan = this.plan;
+    if (plan == null) {
+      plan = ScrubPlan.compile(messageDescriptor, fieldBits, children, selectors);
+      this.plan = plan;
+    }
+    return plan;
+  }
+
+  boolean isKeepAll() {
+    return keepAll;
+  }
+
+  boolean isKeepNone() {
+    return keepNone;
+  }
+
+  boolean keeps(Descriptors.FieldDescriptor field) {
+    return keepAll || isSet(fieldBits, field.getIndex());
+  }
+
+  Descriptors.Descriptor descriptor() {
+    return messageDescriptor;
+  }
+
+  // Engines that don't know selectors fall back to the core scrub when this holds
+  boolean isSelective() {
+    return selective;
+  }
+
+  Selector selector(Descriptors.FieldDescriptor field) {
+    return selectors == null ? null : selectors[field.getIndex()];
+  }
+
+  // A kept field as a selector, so that selected and whole fields combine alike
+  private Selector selection(Descriptors.FieldDescriptor field) {
+    Selector selector = selector(field);
+    if (selector != null) {
+      return selector;
+    }
+    int index = field.getIndex();
+    return Selector.whole(field, keepAll || isSet(fieldBits, index), keepAll ? child(field) : children[index]);
+  }
+
+  // The sub-mask as stored, null for primitives and for nodes that keep everything
+  FieldMask2<Message> childAt(int index) {
+    return children == null ? null : children[index];
+  }
+
+  // The mask for the value of a kept message field
+  FieldMask2<Message> child(Descriptors.FieldDescriptor field) {
+    FieldMask2<Message> child = children == null ? null : children[field.getIndex()];
+    return child != null ? child : keepAll(field.getMessageType());
+  }
+
+  // Same as scrub(a).equals(scrub(b)), but stops at the first difference and builds nothing
+  public boolean equalsUnderMask(T a, T b) {
+    checkCompatible(a.getDescriptorForType());
+    checkCompatible(b.getDescriptorForType());
+    return MaskedEquality.equals((FieldMask2<Message>) this, a, b);
+  }
+
+  // A 64 bit hash of the scrubbed view. It is equal for messages that are
+  // equal under this mask and the same in every JVM, so it can be stored.
+  public long hashUnderMask(T message) {
+    checkCompatible(message.getDescriptorForType());
+    return MaskedEquality.hash((FieldMask2<Message>) this, message);
+  }
+
+  // The kept paths whose values differ between the two messages. Repeated
+  // fields and fields that are set in only one of them are reported as a
+  // whole, singular message fields down to the fields that changed. It keeps
+  // nothing exactly when equalsUnderMask(before, after) holds.
+  public FieldMask2<T> diff(T before, T after) {
+    checkCompatible(before.getDescriptorForType());
+    checkCompatible(after.getDescriptorForType());
+    return (FieldMask2<T>) diff((FieldMask2<Message>) this, before, after);
+  }
+
+  private static FieldMask2<Message> diff(FieldMask2<Message> mask, Message before, Message after) {
+    Descriptors.Descriptor descriptor = mask.messageDescriptor;
+    if (mask.keepNone || before == after || mask.keepAll && before.equals(after)) {
+      return keepNone(descriptor);
+    }
+    long[] fieldBits = newFieldBits(descriptor);
+    FieldMask2<Message>[] children = newChildren(descriptor);
+    Selector[] selectors = newSelectors(mask);
+    for (Descriptors.FieldDescriptor field : descriptor.getFields()) {
+      if (!mask.keeps(field)) {
+        continue;
+      }
+      Selector selector = mask.selector(field);
+      if (selector != null) {
+        // Compared as the scrubbed field, and reported with the same selector
+        ScrubPlan.Op op = mask.plan().find(field.getNumber());
+        if (!MaskedEquality.fieldEquals(field, null, op.fieldOnly(before), op.fieldOnly(after))) {
+          set(fieldBits, field.getIndex());
+          selectors[field.getIndex()] = selector;
         }
-      } else {
-        Message value = (Message) message.getField(field);
-        if (value != null) {
-          builder.setField(field, subMask.scrub(value));
+        continue;
+      }
+      FieldMask2<Message> child = field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE ? mask.child(field) : null;
+      if (child != null && !field.isRepeated() && before.hasField(field) && after.hasField(field)) {
+        FieldMask2<Message> changed = diff(child, (Message) before.getField(field), (Message) after.getField(field));
+        if (!changed.keepNone) {
+          set(fieldBits, field.getIndex());
+          children[field.getIndex()] = changed;
         }
+      } else if (!MaskedEquality.fieldEquals(field, child, before, after)) {
+        set(fieldBits, field.getIndex());
+        children[field.getIndex()] = child;
       }
     }
-    for (Descriptors.FieldDescriptor field : primitiveMasks) {
-      if (field.isRepeated()) {
-        int count = message.getRepeatedFieldCount(field);
-        for (int i = 0; i < count; i++) {
-          Object value = message.getRepeatedField(field, i);
-          builder.addRepeatedField(field, value);
-        }
-      } else {
-        Object value = message.getField(field);
-        if (value != null) {
-          builder.setField(field, value);
-        }
+    FieldMask2<Message> changed = of(descriptor, fieldBits, children, selectors);
+    // Only extensions or unknown fields differ, which no narrower path covers
+    if (changed.keepNone && mask.keepAll) {
+      return mask;
+    }
+    return changed;
+  }
+
+  public JsonPrinter<T> jsonPrinter() {
+    return new JsonPrinter<>(this);
+  }
+
+  public void scrub(ByteString message, CodedOutputStream output) throws IOException {
+    scrub(message.newCodedInput(), output);
+  }
+
+  public void scrub(byte[] message, CodedOutputStream output) throws IOException {
+    scrub(CodedInputStream.newInstance(message), output);
+  }
+
+  public void scrub(ByteBuffer message, CodedOutputStream output) throws IOException {
+    scrub(CodedInputStream.newInstance(message), output);
+  }
+
+  public void scrub(CodedInputStream input, CodedOutputStream output) throws IOException {
+    if (keepNone) {
+      input.skipMessage();
+      return;
+    }
+    if (keepAll) {
+      copyFields(input, output);
+      return;
+    }
+    if (selective) {
+      scrubParsed(input).writeTo(output);
+      return;
+    }
+    scrubFields(input, output);
+    input.checkLastTagWas(0);
+  }
+
+  // Selectors need element positions and map keys, so selective masks parse
+  // the message. The result can be longer than its input.
+  Message scrubParsed(CodedInputStream input) throws IOException {
+    return scrubNested((T) DynamicMessage.parseFrom(messageDescriptor, input), null);
+  }
+
+  public int getScrubbedSerializedSize(T message) {
+    if (keepAll) {
+      return message.getSerializedSize();
+    }
+    if (keepNone) {
+      return 0;
+    }
+    checkCompatible(message.getDescriptorForType());
+    return new ScrubbedSerializer().size(plan(), message);
+  }
+
+  // Writes the same bytes as scrub(message).writeTo(output) without building the scrubbed message.
+  public void writeScrubbedTo(T message, CodedOutputStream output) throws IOException {
+    if (keepAll) {
+      message.writeTo(output);
+      return;
+    }
+    if (keepNone) {
+      return;
+    }
+    checkCompatible(message.getDescriptorForType());
+    ScrubbedSerializer serializer = new ScrubbedSerializer();
+    serializer.size(plan(), message);
+    serializer.write(plan(), message, output);
+  }
+
+  public T parseFrom(T template, InputStream input) throws IOException {
+    return parseFrom(template, CodedInputStream.newInstance(input));
+  }
+
+  public T parseFrom(T template, ByteBuffer input) throws IOException {
+    checkCompatible(template.getDescriptorForType());
+    if (selective) {
+      return scrubNested((T) template.getParserForType().parseFrom(input), null);
+    }
+    // Without selectors the kept fields are a subset of the input, so they fit in a buffer of the same size
+    byte[] buffer = new byte[input.remaining()];
+    CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+    scrub(input, output);
+    return (T) template.newBuilderForType().mergeFrom(buffer, 0, output.getTotalBytesWritten()).build();
+  }
+
+  public T parseFrom(T template, CodedInputStream input) throws IOException {
+    Message.Builder builder = template.newBuilderForType();
+    mergeFrom(input, builder);
+    return (T) builder.build();
+  }
+
+  public void mergeFrom(CodedInputStream input, Message.Builder builder) throws IOException {
+    checkCompatible(builder.getDescriptorForType());
+    ByteString.Output buffer = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+    scrub(input, output);
+    output.flush();
+    builder.mergeFrom(buffer.toByteString());
+  }
+
+  private static void copyFields(CodedInputStream input, CodedOutputStream output) throws IOException {
+    while (true) {
+      int tag = input.readTag();
+      if (tag == 0 || !copyField(tag, input, output)) {
+        return;
+      }
+    }
+  }
+
+  // Copies one field as it is, and returns false for an end group tag like skipField does
+  private static boolean copyField(int tag, CodedInputStream input, CodedOutputStream output) throws IOException {
+    switch (WireFormat.getTagWireType(tag)) {
+      case WireFormat.WIRETYPE_VARINT: {
+        long value = input.readRawVarint64();
+        output.writeUInt32NoTag(tag);
+        output.writeUInt64NoTag(value);
+        return true;
+      }
+      case WireFormat.WIRETYPE_FIXED64: {
+        long value = input.readRawLittleEndian64();
+        output.writeUInt32NoTag(tag);
+        output.writeFixed64NoTag(value);
+        return true;
+      }
+      case WireFormat.WIRETYPE_LENGTH_DELIMITED: {
+        ByteString value = input.readBytes();
+        output.writeUInt32NoTag(tag);
+        output.writeBytesNoTag(value);
+        return true;
+      }
+      case WireFormat.WIRETYPE_START_GROUP: {
+        output.writeUInt32NoTag(tag);
+        copyFields(input, output);
+        int endTag = WireFormat.getTagFieldNumber(tag) << 3 | WireFormat.WIRETYPE_END_GROUP;
+        input.checkLastTagWas(endTag);
+        output.writeUInt32NoTag(endTag);
+        return true;
+      }
+      case WireFormat.WIRETYPE_END_GROUP:
+        return false;
+      case WireFormat.WIRETYPE_FIXED32: {
+        int value = input.readRawLittleEndian32();
+        output.writeUInt32NoTag(tag);
+        output.writeFixed32NoTag(value);
+        return true;
+      }
+      default:
+        throw new InvalidProtocolBufferException("Protocol message tag had invalid wire type.");
+    }
+  }
+
+  private void scrubFields(CodedInputStream input, CodedOutputStream output) throws IOException {
+    while (true) {
+      int tag = input.readTag();
+      if (tag == 0 || WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_END_GROUP) {
+        return;
+      }
+      ScrubPlan.Op op = plan().find(WireFormat.getTagFieldNumber(tag));
+      if (op == null || !isExpectedWireType(op.field, WireFormat.getTagWireType(tag))) {
+        input.skipField(tag);
+        continue;
+      }
+      switch (op.kind) {
+        case COPY_SCALAR:
+        case COPY_REPEATED:
+        case KEEP_MESSAGE:
+          copyField(tag, input, output);
+          break;
+        case RECURSE_MESSAGE:
+        case RECURSE_REPEATED:
+          if (op.field.getType() == Descriptors.FieldDescriptor.Type.GROUP) {
+            output.writeTag(op.field.getNumber(), WireFormat.WIRETYPE_START_GROUP);
+            op.child.scrubFields(input, output);
+            input.checkLastTagWas(groupEndTag(op.field));
+            output.writeTag(op.field.getNumber(), WireFormat.WIRETYPE_END_GROUP);
+          } else {
+            // A scrubbed submessage is never longer than its input, so that bounds the buffer.
+            int length = input.readRawVarint32();
+            int oldLimit = input.pushLimit(length);
+            byte[] buffer = new byte[length];
+            CodedOutputStream subOutput = CodedOutputStream.newInstance(buffer);
+            op.child.scrubFields(input, subOutput);
+            input.checkLastTagWas(0);
+            input.popLimit(oldLimit);
+            output.writeByteArray(op.field.getNumber(), buffer, 0, subOutput.getTotalBytesWritten());
+          }
+          break;
       }
     }
   }
 
+  static boolean isExpectedWireType(Descriptors.FieldDescriptor field, int wireType) {
+    if (wireType == field.getLiteType().getWireType()) {
+      return true;
+    }
+    return field.isRepeated() && field.getLiteType().isPackable() && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+  }
+
+  private static int groupEndTag(Descriptors.FieldDescriptor field) {
+    return (field.getNumber() << 3) | WireFormat.WIRETYPE_END_GROUP;
+  }
+
   public FieldMask2<T> union(FieldMask2<T> other) {
-    if (keepAll || other.keepNone) {
+    if (keepAll || other.keepNone || this == other) {
       return this;
     }
     if (other.keepAll || keepNone) {
@@ -113,25 +623,27 @@ public class FieldMask2<T extends Message> {
 
     checkCompatible(other.messageDescriptor);
 
-    Map<Descriptors.FieldDescriptor, FieldMask2<Message>> subMessageMasks = new HashMap<>();
-    HashSet<Descriptors.FieldDescriptor> primitiveMasks = new HashSet<>();
-
-    subMessageMasks.putAll(this.subMessageMasks);
-    for (Map.Entry<Descriptors.FieldDescriptor, FieldMask2<Message>> entry : other.subMessageMasks.entrySet()) {
-      FieldMask2<Message> existingValue = subMessageMasks.get(entry.getKey());
-      if (existingValue == null) {
-        subMessageMasks.put(entry.getKey(), entry.getValue());
-      } else {
-        subMessageMasks.put(entry.getKey(), existingValue.union(entry.getValue()));
+    long[] fieldBits = new long[this.fieldBits.length];
+    for (int i = 0; i < fieldBits.length; i++) {
+      fieldBits[i] = this.fieldBits[i] | other.fieldBits[i];
+    }
+    FieldMask2<Message>[] children = newChildren(messageDescriptor);
+    Selector[] selectors = new Selector[children.length];
+    for (int i = 0; i < children.length; i++) {
+      if (this.selectors != null && this.selectors[i] != null || other.selectors != null && other.selectors[i] != null) {
+        Descriptors.FieldDescriptor field = messageDescriptor.getFields().get(i);
+        select(selection(field).union(other.selection(field)), fieldBits, children, selectors);
+        continue;
       }
+      FieldMask2<Message> child = this.children[i];
+      FieldMask2<Message> otherChild = other.children[i];
+      children[i] = child == null ? otherChild : otherChild == null ? child : child.union(otherChild);
     }
-    primitiveMasks.addAll(this.primitiveMasks);
-    primitiveMasks.addAll(other.primitiveMasks);
-    return new FieldMask2<>(subMessageMasks, primitiveMasks, false, false, messageDescriptor);
+    return (FieldMask2<T>) of(messageDescriptor, fieldBits, children, selectors);
   }
 
   public FieldMask2<T> intersect(FieldMask2<T> other) {
-    if (keepNone || other.keepAll) {
+    if (keepNone || other.keepAll || this == other) {
       return this;
     }
     if (other.keepNone || keepAll) {
@@ -140,22 +652,38 @@ public class FieldMask2<T extends Message> {
 
     checkCompatible(other.messageDescriptor);
 
-    Map<Descriptors.FieldDescriptor, FieldMask2<Message>> subMessageMasks = new HashMap<>();
-    HashSet<Descriptors.FieldDescriptor> primitiveMasks = new HashSet<>();
-
-    subMessageMasks.putAll(this.subMessageMasks);
-    for (Map.Entry<Descriptors.FieldDescriptor, FieldMask2<Message>> entry : other.subMessageMasks.entrySet()) {
-      FieldMask2<Message> existingValue = subMessageMasks.get(entry.getKey());
-      if (existingValue == null) {
-        subMessageMasks.remove(entry.getKey());
-      } else {
-        subMessageMasks.put(entry.getKey(), existingValue.intersect(entry.getValue()));
+    long[] fieldBits = new long[this.fieldBits.length];
+    for (int i = 0; i < fieldBits.length; i++) {
+      fieldBits[i] = this.fieldBits[i] & other.fieldBits[i];
+    }
+    FieldMask2<Message>[] children = newChildren(messageDescriptor);
+    Selector[] selectors = new Selector[children.length];
+    for (int i = 0; i < children.length; i++) {
+      if (this.selectors != null && this.selectors[i] != null || other.selectors != null && other.selectors[i] != null) {
+        Descriptors.FieldDescriptor field = messageDescriptor.getFields().get(i);
+        select(selection(field).intersect(other.selection(field)), fieldBits, children, selectors);
+        continue;
+      }
+      if (isSet(fieldBits, i) && this.children[i] != null) {
+        children[i] = this.children[i].intersect(other.children[i]);
       }
     }
-    primitiveMasks.addAll(this.primitiveMasks);
-    primitiveMasks.retainAll(other.primitiveMasks);
+    return (FieldMask2<T>) of(messageDescriptor, fieldBits, children, selectors);
+  }
 
-    return new FieldMask2<>(subMessageMasks, primitiveMasks, false, false, messageDescriptor);
+  // Stores a combined selector, as a whole field when it selects nothing in particular
+  static void select(Selector selector, long[] fieldBits, FieldMask2<Message>[] children, Selector[] selectors) {
+    int index = selector.field().getIndex();
+    if (!selector.isWhole()) {
+      set(fieldBits, index);
+      children[index] = null;
+      selectors[index] = selector;
+    } else if (selector.keepsRest()) {
+      set(fieldBits, index);
+      children[index] = selector.rest();
+    } else {
+      clear(fieldBits, index);
+    }
   }
 
   @Override
@@ -163,15 +691,41 @@ public class FieldMask2<T extends Message> {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
     FieldMask2<?> that = (FieldMask2<?>) o;
-    return keepAll == that.keepAll &&
-            keepNone == that.keepNone &&
-            subMessageMasks.equals(that.subMessageMasks) &&
-            primitiveMasks.equals(that.primitiveMasks);
+    if (hashCode != that.hashCode ||
+            messageDescriptor != that.messageDescriptor ||
+            keepAll != that.keepAll ||
+            keepNone != that.keepNone ||
+            !Arrays.equals(fieldBits, that.fieldBits) ||
+            !Arrays.equals(selectors, that.selectors)) {
+      return false;
+    }
+    if (children == null || that.children == null) {
+      return children == that.children;
+    }
+    // Children are interned, so equal children are the same instance
+    for (int i = 0; i < children.length; i++) {
+      if (children[i] != that.children[i]) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(subMessageMasks, primitiveMasks, keepAll, keepNone);
+    return hashCode;
+  }
+
+  private int computeHashCode() {
+    int result = Objects.hash(messageDescriptor, keepAll, keepNone);
+    result = 31 * result + Arrays.hashCode(fieldBits);
+    result = 31 * result + Arrays.hashCode(selectors);
+    if (children != null) {
+      for (FieldMask2<Message> child : children) {
+        result = 31 * result + (child == null ? 0 : child.hashCode);
+      }
+    }
+    return result;
   }
 
   public static <T extends Message> FieldMask2<T> create(T template, String... masks) {
@@ -196,19 +750,48 @@ public class FieldMask2<T extends Message> {
       return;
     }
 
-    for (Descriptors.FieldDescriptor primitiveMask : primitiveMasks) {
-      indent(sb, indent);
-      sb.append(primitiveMask.getName()).append("\n");
+    for (Descriptors.FieldDescriptor field : messageDescriptor.getFields()) {
+      if (isSet(fieldBits, field.getIndex()) && children[field.getIndex()] == null && selector(field) == null) {
+        indent(sb, indent);
+        sb.append(field.getName()).append("\n");
+      }
     }
 
-    for (Map.Entry<Descriptors.FieldDescriptor, FieldMask2<Message>> entry : subMessageMasks.entrySet()) {
-      indent(sb, indent);
-      sb.append(entry.getKey().getName()).append(":\n");
-      entry.getValue().toString(sb, indent + 2);
+    for (Descriptors.FieldDescriptor field : messageDescriptor.getFields()) {
+      FieldMask2<Message> child = children[field.getIndex()];
+      if (child != null) {
+        indent(sb, indent);
+        sb.append(field.getName()).append(":\n");
+        child.toString(sb, indent + 2);
+      }
+    }
+
+    // Selected fields, as attributes["locale"] and items[0:10]
+    for (Descriptors.FieldDescriptor field : messageDescriptor.getFields()) {
+      Selector selector = selector(field);
+      if (selector == null) {
+        continue;
+      }
+      if (selector.keepsRest()) {
+        toString(sb, indent, field.getName(), selector.rest());
+      }
+      for (int item = 0; item < selector.size(); item++) {
+        toString(sb, indent, field.getName() + selector.path(item), selector.pathMask(item));
+      }
+    }
+  }
+
+  private static void toString(StringBuilder sb, int indent, String path, FieldMask2<Message> child) {
+    indent(sb, indent);
+    if (child == null) {
+      sb.append(path).append("\n");
+    } else {
+      sb.append(path).append(":\n");
+      child.toString(sb, indent + 2);
     }
   }
 
-  private void indent(StringBuilder sb, int indent) {
+  private static void indent(StringBuilder sb, int indent) {
     for (int i = 0; i < indent; i++) {
       sb.append(' ');
     }
@@ -216,74 +799,144 @@ public class FieldMask2<T extends Message> {
 
   public FieldMask toFieldMask() {
     FieldMask.Builder builder = FieldMask.newBuilder();
+    if (keepAll) {
+      for (Descriptors.FieldDescriptor field : messageDescriptor.getFields()) {
+        builder.addPaths(field.getName());
+      }
+    }
     addPaths(builder, new StringBuilder());
     return builder.build();
   }
 
   private void addPaths(FieldMask.Builder builder, StringBuilder sb) {
-    for (Descriptors.FieldDescriptor primitiveMask : primitiveMasks) {
-      int prevLen = sb.length();
-      if (prevLen > 0) {
-        sb.append('.');
+    if (keepAll || keepNone) {
+      return;
+    }
+    for (Descriptors.FieldDescriptor field : messageDescriptor.getFields()) {
+      if (isSet(fieldBits, field.getIndex()) && children[field.getIndex()] == null && selector(field) == null) {
+        addPath(builder, sb, field.getName(), null);
       }
-      sb.append(primitiveMask.getName());
-      builder.addPaths(sb.toString());
-      sb.setLength(prevLen);
-    }
-    for (Map.Entry<Descriptors.FieldDescriptor, FieldMask2<Message>> entry : subMessageMasks.entrySet()) {
-      int prevLen = sb.length();
-      if (prevLen > 0) {
-        sb.append('.');
-      }
-      String name = entry.getKey().getName();
-      sb.append(name);
-      FieldMask2<Message> child = entry.getValue();
-      if (child.keepAll) {
-        builder.addPaths(sb.toString());
-      } else {
-        child.addPaths(builder, sb);
+    }
+    for (Descriptors.FieldDescriptor field : messageDescriptor.getFields()) {
+      FieldMask2<Message> child = children[field.getIndex()];
+      if (child != null) {
+        addPath(builder, sb, field.getName(), child);
+      }
+    }
+    for (Descriptors.FieldDescriptor field : messageDescriptor.getFields()) {
+      Selector selector = selector(field);
+      if (selector == null) {
+        continue;
+      }
+      if (selector.keepsRest()) {
+        addPath(builder, sb, field.getName(), selector.rest());
+      }
+      for (int item = 0; item < selector.size(); item++) {
+        addPath(builder, sb, field.getName() + selector.path(item), selector.pathMask(item));
       }
-      sb.setLength(prevLen);
     }
   }
 
+  // A null or keep-all child adds the path itself
+  private static void addPath(FieldMask.Builder builder, StringBuilder sb, String segment, FieldMask2<Message> child) {
+    int prevLen = sb.length();
+    if (prevLen > 0) {
+      sb.append('.');
+    }
+    sb.append(segment);
+    if (child == null || child.keepAll) {
+      builder.addPaths(sb.toString());
+    } else {
+      child.addPaths(builder, sb);
+    }
+    sb.setLength(prevLen);
+  }
+
+  // Keeps the fields that are set in the message, and everything when nothing is set
   public static <T extends Message> FieldMask2<T> fromMessage(T message) {
-    if (message.equals(message.getDefaultInstanceForType())) {
-      return (FieldMask2<T>) KEEP_ALL;
-    }
-
-    Map<Descriptors.FieldDescriptor, FieldMask2<Message>> subs = new HashMap<>();
-    HashSet<Descriptors.FieldDescriptor> primitiveMasks = new HashSet<>();
-
-    final Map<Descriptors.FieldDescriptor, Object> fields = message.getAllFields();
-    for (Map.Entry<Descriptors.FieldDescriptor, Object> entry : fields.entrySet()) {
-      Object value = entry.getValue();
-      if (value != null) {
-        Descriptors.FieldDescriptor key = entry.getKey();
-        if (key.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) {
-          Object value2 = getFirst(message, key);
-          if (value2 != null) {
-            subs.put(key, fromMessage((Message) value2));
-          }
-        } else {
-          Object value2 = getFirst(message, key);
-          if (value2 != null && !value2.equals(key.getDefaultValue())) {
-            primitiveMasks.add(key);
-          }
+    return (FieldMask2<T>) infer(message);
+  }
+
+  // Same as fromMessage(parsed bytes), read straight from the tag stream without parsing
+  public static <T extends Message> FieldMask2<T> fromSerialized(T template, ByteString message) throws InvalidProtocolBufferException {
+    return (FieldMask2<T>) SerializedInference.infer(template.getDescriptorForType(), message);
+  }
+
+  public static <T extends Message> FieldMask2<T> fromSerialized(T template, byte[] message) throws InvalidProtocolBufferException {
+    return fromSerialized(template, ByteString.copyFrom(message));
+  }
+
+  // One pass over the fields. Message fields are inferred from their first
+  // value; other singular fields only count when they differ from the default.
+  private static FieldMask2<Message> infer(Message message) {
+    Descriptors.Descriptor descriptor = message.getDescriptorForType();
+    long[] fieldBits = null;
+    FieldMask2<Message>[] children = null;
+    boolean present = false;
+    for (Descriptors.FieldDescriptor field : descriptor.getFields()) {
+      Object value;
+      if (field.isRepeated()) {
+        if (message.getRepeatedFieldCount(field) == 0) {
+          continue;
+        }
+        value = message.getRepeatedField(field, 0);
+      } else {
+        if (!message.hasField(field)) {
+          continue;
         }
+        value = message.getField(field);
       }
+      present = true;
+      boolean isMessage = field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE;
+      if (isMessage || field.isRepeated() || !value.equals(field.getDefaultValue())) {
+        if (fieldBits == null) {
+          fieldBits = newFieldBits(descriptor);
+          children = newChildren(descriptor);
+        }
+        set(fieldBits, field.getIndex());
+        if (isMessage) {
+          children[field.getIndex()] = infer((Message) value);
+        }
+      }
+    }
+    // Without set fields, only extensions and unknown fields tell it apart from the default instance
+    if (!present && message.getSerializedSize() == 0) {
+      return keepAll(descriptor);
     }
-    return new FieldMask2<>(subs, primitiveMasks, false, false, message.getDescriptorForType());
+    return fieldBits == null ? keepNone(descriptor) : of(descriptor, fieldBits, children);
   }
 
-  private static <T extends Message> Object getFirst(T message, Descriptors.FieldDescriptor key) {
-    if (key.isRepeated()) {
-      if (message.getRepeatedFieldCount(key) > 0) {
-        return message.getRepeatedField(key, 0);
-      }
-      return null;
+  // A compact form that refers to fields by number, see MaskCodec. It stays
+  // valid when fields are renamed, and fields that are removed later are
+  // dropped by fromBinary.
+  public ByteString toBinary() {
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    try {
+      MaskCodec.write((FieldMask2<Message>) this, output);
+      output.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteString();
+  }
+
+  public static <T extends Message> FieldMask2<T> fromBinary(T template, ByteString mask) throws InvalidProtocolBufferException {
+    return fromBinary(template.getDescriptorForType(), mask.newCodedInput());
+  }
+
+  public static <T extends Message> FieldMask2<T> fromBinary(T template, ByteBuffer mask) throws InvalidProtocolBufferException {
+    return fromBinary(template.getDescriptorForType(), CodedInputStream.newInstance(mask));
+  }
+
+  static <T extends Message> FieldMask2<T> fromBinary(Descriptors.Descriptor descriptor, CodedInputStream input) throws InvalidProtocolBufferException {
+    try {
+      return (FieldMask2<T>) MaskCodec.read(descriptor, input);
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e);
     }
-    return message.getField(key);
   }
 
   public static <T extends Message> FieldMask2<T> fromFieldMask(T template, FieldMask fieldMask) {
@@ -291,58 +944,271 @@ public class FieldMask2<T extends Message> {
   }
 
   public static <T extends Message> FieldMask2<T> create(T template, List<String> masks) {
-    FieldMask2<Message> current = KEEP_NONE;
+    Builder<T> builder = newBuilder(template);
     for (String mask : masks) {
-      current = current.union(createSingleLine(template.getDescriptorForType(), mask));
+      builder.addPaths(mask);
     }
-    return (FieldMask2<T>) current;
+    return builder.build();
   }
 
-  private static FieldMask2<Message> createSingleLine(Descriptors.Descriptor descriptor, String maskLine) {
-    if (maskLine.contains(",")) {
-      FieldMask2<Message> current = KEEP_NONE;
-      String[] split = maskLine.split(",");
-      for (String s : split) {
-        if (!s.isEmpty()) {
-          current = current.union(createSinglePath(descriptor, s));
+  // The comma separated paths of a mask line, without empty ones. Commas in quoted map keys don't separate paths.
+  static List<String> splitPaths(String maskLine) {
+    List<String> paths = new ArrayList<>();
+    int start = 0;
+    boolean quoted = false;
+    for (int i = 0; i < maskLine.length(); i++) {
+      char c = maskLine.charAt(i);
+      if (quoted && c == '\\') {
+        i++;
+      } else if (c == '"') {
+        quoted = !quoted;
+      } else if (c == ',' && !quoted) {
+        if (i > start) {
+          paths.add(maskLine.substring(start, i));
         }
+        start = i + 1;
       }
-      return current;
-    } else if (maskLine.isEmpty()) {
-      return KEEP_NONE;
-    } else {
-      return createSinglePath(descriptor, maskLine);
     }
+    if (start < maskLine.length()) {
+      paths.add(maskLine.substring(start));
+    }
+    return paths;
   }
 
-  private static FieldMask2<Message> createSinglePath(Descriptors.Descriptor descriptor, String maskPath) {
-    String[] split = maskPath.split("\\.");
-    return createSinglePath(descriptor, split, 0);
+  public static <T extends Message> Builder<T> newBuilder(T template) {
+    return new Builder<>(template.getDescriptorForType());
   }
 
-  private static FieldMask2<Message> createSinglePath(Descriptors.Descriptor descriptor, String[] segments, int index) {
-    if (index == segments.length) {
-      return KEEP_ALL;
+  public static final class Builder<T extends Message> {
+    private final Descriptors.Descriptor descriptor;
+    private final Node root = new Node();
+
+    private Builder(Descriptors.Descriptor descriptor) {
+      this.descriptor = descriptor;
     }
 
-    String segment = segments[index];
+    public Builder<T> addPaths(String maskLine) {
+      for (String path : splitPaths(maskLine)) {
+        addPath(path);
+      }
+      return this;
+    }
 
-    Descriptors.FieldDescriptor field = descriptor.findFieldByName(segment);
+    public Builder<T> addPaths(Iterable<String> maskLines) {
+      for (String maskLine : maskLines) {
+        addPaths(maskLine);
+      }
+      return this;
+    }
 
-    if (field == null) {
-      throw new MissingFieldException(descriptor, segment);
+    public Builder<T> addFieldMask(FieldMask fieldMask) {
+      return addPaths(fieldMask.getPathsList());
     }
 
-    if (field.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) {
-      Descriptors.Descriptor childDescriptor = field.getMessageType();
-      FieldMask2<Message> child = createSinglePath(childDescriptor, segments, index + 1);
-      return new FieldMask2<>(Collections.singletonMap(field, child), Collections.emptySet(), false, false, descriptor);
-    } else {
-      if (index < segments.length - 1) {
-        throw new PrimitiveFieldException(descriptor, segment);
+    // Segments are field names, and a repeated field may be followed by a
+    // selector: a map key as in attributes["locale"] or attributes[42], or an
+    // index range as in items[3], items[0:10] or items[10:]. Segments after a
+    // map key select in the map value.
+    private void addPath(String maskPath) {
+      int length = maskPath.length();
+      // Trailing dots are ignored, as they always were
+      while (length > 0 && maskPath.charAt(length - 1) == '.') {
+        length--;
       }
+      // Null below a node that keeps everything, where the rest of the path is only validated
+      Node node = root;
+      Descriptors.Descriptor current = descriptor;
+      int start = 0;
+      while (start < length) {
+        if (node != null && node.keepAll) {
+          node = null;
+        }
+        int end = start;
+        while (end < length && maskPath.charAt(end) != '.' && maskPath.charAt(end) != '[') {
+          end++;
+        }
+        String segment = maskPath.substring(start, end);
+        Descriptors.FieldDescriptor field = current.findFieldByName(segment);
+        if (field == null) {
+          throw new MissingFieldException(current, segment);
+        }
+        boolean isMessage = field.getType() == Descriptors.FieldDescriptor.Type.MESSAGE;
+        if (end < length && maskPath.charAt(end) == '[') {
+          int close = selectorEnd(maskPath, end, length);
+          if (close < 0 || !field.isRepeated() || close + 1 < length && maskPath.charAt(close + 1) != '.') {
+            throw new InvalidSelectorException(current, maskPath.substring(start, close < 0 ? length : close + 1));
+          }
+          Object item = selectorItem(field, maskPath.substring(end + 1, close));
+          if (item == null) {
+            throw new InvalidSelectorException(current, maskPath.substring(start, close + 1));
+          }
+          Node element = node == null ? null : node.select(field, item);
+          if (close + 1 >= length) {
+            if (element != null) {
+              element.keepAll();
+            }
+            return;
+          }
+          if (field.isMapField()) {
+            Descriptors.FieldDescriptor valueField = field.getMessageType().findFieldByNumber(2);
+            if (valueField.getType() != Descriptors.FieldDescriptor.Type.MESSAGE) {
+              throw new PrimitiveFieldException(current, segment);
+            }
+            if (element != null) {
+              element.primitive(field.getMessageType().findFieldByNumber(1));
+            }
+            node = element == null ? null : element.child(valueField);
+            current = valueField.getMessageType();
+          } else {
+            if (!isMessage) {
+              throw new PrimitiveFieldException(current, segment);
+            }
+            node = element;
+            current = field.getMessageType();
+          }
+          start = close + 2;
+          continue;
+        }
+        if (isMessage) {
+          node = node == null ? null : node.child(field);
+          current = field.getMessageType();
+        } else {
+          if (end < length) {
+            throw new PrimitiveFieldException(current, segment);
+          }
+          if (node != null) {
+            node.primitive(field);
+          }
+          return;
+        }
+        start = end + 1;
+      }
+      if (node != null) {
+        node.keepAll();
+      }
+    }
+
+    // The index of the closing bracket, or -1
+    private static int selectorEnd(String maskPath, int open, int length) {
+      boolean quoted = false;
+      for (int i = open + 1; i < length; i++) {
+        char c = maskPath.charAt(i);
+        if (quoted && c == '\\') {
+          i++;
+        } else if (c == '"') {
+          quoted = !quoted;
+        } else if (c == ']' && !quoted) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    // A map key, or an index range packed as start << 32 | end. Null if the selector is invalid.
+    private static Object selectorItem(Descriptors.FieldDescriptor field, String selector) {
+      if (field.isMapField()) {
+        return Selector.parseKey(field.getMessageType().findFieldByNumber(1), selector);
+      }
+      int colon = selector.indexOf(':');
+      try {
+        int start = colon == 0 ? 0 : Integer.parseInt(selector.substring(0, colon < 0 ? selector.length() : colon));
+        int end = colon < 0 ? start + 1
+                : colon == selector.length() - 1 ? Integer.MAX_VALUE
+                : Integer.parseInt(selector.substring(colon + 1));
+        if (start < 0 || end <= start) {
+          return null;
+        }
+        return (long) start << 32 | end;
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    public FieldMask2<T> build() {
+      return (FieldMask2<T>) root.freeze(descriptor);
+    }
+  }
+
+  // Mutable trie behind Builder. A node that keeps everything drops its
+  // children, and later paths below it are validated but not added.
+  private static final class Node {
+    private boolean keepAll;
+    private Map<Descriptors.FieldDescriptor, Node> children;
+    private Set<Descriptors.FieldDescriptor> primitives;
+    // Element nodes of selected fields by map key or packed index range
+    private Map<Descriptors.FieldDescriptor, Map<Object, Node>> selected;
+
+    Node child(Descriptors.FieldDescriptor field) {
+      if (children == null) {
+        children = new HashMap<>();
+      }
+      return children.computeIfAbsent(field, f -> new Node());
+    }
 
-      return new FieldMask2<>(Collections.emptyMap(), Collections.singleton(field), false, false, descriptor);
+    void primitive(Descriptors.FieldDescriptor field) {
+      if (primitives == null) {
+        primitives = new HashSet<>();
+      }
+      primitives.add(field);
+    }
+
+    Node select(Descriptors.FieldDescriptor field, Object item) {
+      if (selected == null) {
+        selected = new HashMap<>();
+      }
+      return selected.computeIfAbsent(field, f -> new HashMap<>()).computeIfAbsent(item, i -> new Node());
+    }
+
+    void keepAll() {
+      keepAll = true;
+      children = null;
+      primitives = null;
+      selected = null;
+    }
+
+    FieldMask2<Message> freeze(Descriptors.Descriptor descriptor) {
+      if (keepAll) {
+        return FieldMask2.keepAll(descriptor);
+      }
+      long[] fieldBits = newFieldBits(descriptor);
+      FieldMask2<Message>[] frozen = newChildren(descriptor);
+      if (children != null) {
+        for (Map.Entry<Descriptors.FieldDescriptor, Node> entry : children.entrySet()) {
+          Descriptors.FieldDescriptor field = entry.getKey();
+          set(fieldBits, field.getIndex());
+          frozen[field.getIndex()] = entry.getValue().freeze(field.getMessageType());
+        }
+      }
+      if (primitives != null) {
+        for (Descriptors.FieldDescriptor field : primitives) {
+          set(fieldBits, field.getIndex());
+        }
+      }
+      if (selected == null) {
+        return of(descriptor, fieldBits, frozen);
+      }
+      // Selected elements combine with a path to the whole field like masks do in union
+      Selector[] selectors = new Selector[frozen.length];
+      for (Map.Entry<Descriptors.FieldDescriptor, Map<Object, Node>> entry : selected.entrySet()) {
+        Descriptors.FieldDescriptor field = entry.getKey();
+        Descriptors.Descriptor elementType = field.getType() == Descriptors.FieldDescriptor.Type.MESSAGE ? field.getMessageType() : null;
+        Selector selector = Selector.whole(field, isSet(fieldBits, field.getIndex()), frozen[field.getIndex()]);
+        if (field.isMapField()) {
+          SortedMap<Object, FieldMask2<Message>> masks = new TreeMap<>();
+          for (Map.Entry<Object, Node> item : entry.getValue().entrySet()) {
+            masks.put(item.getKey(), item.getValue().freeze(elementType));
+          }
+          selector = selector.union(Selector.keys(field, false, null, masks));
+        } else {
+          for (Map.Entry<Object, Node> item : entry.getValue().entrySet()) {
+            long range = (Long) item.getKey();
+            FieldMask2<Message> mask = elementType == null ? null : item.getValue().freeze(elementType);
+            selector = selector.union(Selector.range(field, (int) (range >>> 32), (int) range, mask));
+          }
+        }
+        FieldMask2.select(selector, fieldBits, frozen, selectors);
+      }
+      return of(descriptor, fieldBits, frozen, selectors);
     }
   }
 }
@@ -0,0 +1,118 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class FieldMaskCache {
+
+  private final int maximumSize;
+  private final ConcurrentHashMap<Key, FieldMask2<?>> masks = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<Key> insertionOrder = new ConcurrentLinkedQueue<>();
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+
+  public FieldMaskCache(int maximumSize) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+    }
+    this.maximumSize = maximumSize;
+  }
+
+  public <T extends Message> FieldMask2<T> create(T template, String... paths) {
+    return create(template, Arrays.asList(paths));
+  }
+
+  public <T extends Message> FieldMask2<T> create(T template, List<String> paths) {
+    Key key = new Key(template.getDescriptorForType(), normalize(paths));
+    FieldMask2<?> mask = masks.get(key);
+    if (mask != null) {
+      hitCount.increment();
+      return (FieldMask2<T>) mask;
+    }
+    missCount.increment();
+    FieldMask2<T> created = FieldMask2.create(template, key.paths);
+    FieldMask2<?> existing = masks.putIfAbsent(key, created);
+    if (existing != null) {
+      return (FieldMask2<T>) existing;
+    }
+    insertionOrder.add(key);
+    evictIfNeeded();
+    return created;
+  }
+
+  public <T extends Message> FieldMask2<T> fromFieldMask(T template, FieldMask fieldMask) {
+    return create(template, fieldMask.getPathsList());
+  }
+
+  public long size() {
+    return masks.size();
+  }
+
+  public CacheStats stats() {
+    return new CacheStats(hitCount.sum(), missCount.sum(), evictionCount.sum());
+  }
+
+  public void invalidateAll() {
+    masks.clear();
+    insertionOrder.clear();
+  }
+
+  private void evictIfNeeded() {
+    while (masks.size() > maximumSize) {
+      Key oldest = insertionOrder.poll();
+      if (oldest == null) {
+        return;
+      }
+      if (masks.remove(oldest) != null) {
+        evictionCount.increment();
+      }
+    }
+  }
+
+  private static List<String> normalize(List<String> paths) {
+    TreeSet<String> normalized = new TreeSet<>();
+    for (String path : paths) {
+      if (path.indexOf(',') >= 0) {
+        normalized.addAll(FieldMask2.splitPaths(path));
+      } else if (!path.isEmpty()) {
+        normalized.add(path);
+      }
+    }
+    return new ArrayList<>(normalized);
+  }
+
+  private static final class Key {
+    private final Descriptors.Descriptor descriptor;
+    private final List<String> paths;
+    private final int hashCode;
+
+    private Key(Descriptors.Descriptor descriptor, List<String> paths) {
+      this.descriptor = descriptor;
+      this.paths = paths;
+      this.hashCode = 31 * System.identityHashCode(descriptor) + paths.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key that = (Key) o;
+      return descriptor == that.descriptor && paths.equals(that.paths);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
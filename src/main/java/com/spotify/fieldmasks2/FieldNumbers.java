@@ -0,0 +1,65 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.Descriptors;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The fields of message types in field number order, the order they are
+// serialized and printed in. Descriptors built at runtime come and go, so they
+// are held weakly, and an order only holds field indexes, which do not keep
+// the descriptor reachable.
+final class FieldNumbers {
+
+  private static final ConcurrentHashMap<WeakIdentityKey<Descriptors.Descriptor>, FieldNumbers> ORDERS = new ConcurrentHashMap<>();
+  private static final ReferenceQueue<Descriptors.Descriptor> COLLECTED = new ReferenceQueue<>();
+
+  private final int[] numbers;
+  // Field indexes, in the order of numbers
+  private final int[] indexes;
+
+  private FieldNumbers(Descriptors.Descriptor descriptor) {
+    List<Descriptors.FieldDescriptor> fields = descriptor.getFields();
+    Descriptors.FieldDescriptor[] sorted = fields.toArray(new Descriptors.FieldDescriptor[0]);
+    Arrays.sort(sorted, Comparator.comparingInt(Descriptors.FieldDescriptor::getNumber));
+    this.numbers = new int[sorted.length];
+    this.indexes = new int[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      numbers[i] = sorted[i].getNumber();
+      indexes[i] = sorted[i].getIndex();
+    }
+  }
+
+  static FieldNumbers of(Descriptors.Descriptor descriptor) {
+    FieldNumbers order = ORDERS.get(new WeakIdentityKey<>(descriptor, null));
+    if (order != null) {
+      return order;
+    }
+    Object collected;
+    while ((collected = COLLECTED.poll()) != null) {
+      ORDERS.remove(collected);
+    }
+    order = new FieldNumbers(descriptor);
+    FieldNumbers existing = ORDERS.putIfAbsent(new WeakIdentityKey<>(descriptor, COLLECTED), order);
+    return existing != null ? existing : order;
+  }
+
+  int size() {
+    return indexes.length;
+  }
+
+  // The field at a position in number order, of the descriptor this order is of
+  Descriptors.FieldDescriptor get(Descriptors.Descriptor descriptor, int position) {
+    return descriptor.getFields().get(indexes[position]);
+  }
+
+  // Null when the descriptor has no field with the number.
+  // Descriptor.findFieldByNumber allocates a lookup key per call.
+  Descriptors.FieldDescriptor find(Descriptors.Descriptor descriptor, int number) {
+    int position = Arrays.binarySearch(numbers, number);
+    return position >= 0 ? get(descriptor, position) : null;
+  }
+}
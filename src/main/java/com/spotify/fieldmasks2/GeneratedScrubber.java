@@ -0,0 +1,447 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.Message;
+import com.google.protobuf.ProtocolMessageEnum;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+public final class GeneratedScrubber<T extends Message> {
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  private final FieldMask2<T> mask;
+  private volatile Binding binding;
+
+  private GeneratedScrubber(FieldMask2<T> mask) {
+    this.mask = mask;
+  }
+
+  public static <T extends Message> GeneratedScrubber<T> of(FieldMask2<T> mask) {
+    return new GeneratedScrubber<>(mask);
+  }
+
+  public FieldMask2<T> getMask() {
+    return mask;
+  }
+
+  public T scrub(T message) {
+    return scrub(message, null);
+  }
+
+  // Masks with key or index selectors are scrubbed by FieldMask2.scrub
+  public T scrub(T message, BuilderPool builders) {
+    if (mask.isKeepAll() || mask.isKeepNone() || mask.isSelective() || !(message instanceof GeneratedMessageV3)) {
+      return mask.scrub(message, builders);
+    }
+    ScrubListener listener = mask.listener();
+    if (listener != null) {
+      long start = System.nanoTime();
+      T scrubbed = scrubGenerated(message, builders);
+      long nanos = System.nanoTime() - start;
+      listener.onScrub(mask, ScrubEvent.scrub((FieldMask2<Message>) mask, message, scrubbed, nanos));
+      return scrubbed;
+    }
+    return scrubGenerated(message, builders);
+  }
+
+  private T scrubNested(T message, BuilderPool builders) {
+    if (mask.isKeepAll() || mask.isKeepNone() || mask.isSelective() || !(message instanceof GeneratedMessageV3)) {
+      return mask.scrubNested(message, builders);
+    }
+    return scrubGenerated(message, builders);
+  }
+
+  // Like FieldMask2.scrub, hands back the message itself when nothing would be removed from it
+  private T scrubGenerated(T message, BuilderPool builders) {
+    Binding binding = this.binding;
+    if (binding == null || binding.messageClass != message.getClass()) {
+      mask.checkCompatible(message.getDescriptorForType());
+      binding = bind(mask, message.getClass());
+      this.binding = binding;
+    }
+    ScrubPlan plan = mask.plan();
+    if (plan.hasDroppedFields(message)) {
+      if (!plan.hasKeptFields(message)) {
+        return (T) message.getDefaultInstanceForType();
+      }
+      Message.Builder builder = BuilderPool.acquire(builders, message);
+      for (Accessor accessor : binding.accessors) {
+        accessor.merge(message, builder, builders);
+      }
+      return (T) BuilderPool.build(builders, builder);
+    }
+    // Only the fields the mask looks into can change, each child is scrubbed once
+    for (int i = 0; i < binding.recursions.length; i++) {
+      Recursion recursion = binding.recursions[i];
+      if (recursion == null) {
+        continue;
+      }
+      int count = recursion.count.applyAsInt(message);
+      for (int j = 0; j < count; j++) {
+        Message value = (Message) recursion.get.get(message, j);
+        Message scrubbed = recursion.child.scrub(value, builders);
+        if (scrubbed != value) {
+          return (T) rebuild(binding, message, i, j, scrubbed, builders);
+        }
+      }
+    }
+    return message;
+  }
+
+  // Like ScrubPlan.rebuild, copies everything before (accessorIndex, elementIndex) as is
+  private static Message rebuild(Binding binding, Message message, int accessorIndex, int elementIndex, Message scrubbed, BuilderPool builders) {
+    Message.Builder builder = BuilderPool.acquire(builders, message);
+    for (int i = 0; i < accessorIndex; i++) {
+      Recursion recursion = binding.recursions[i];
+      if (recursion == null) {
+        binding.accessors[i].merge(message, builder, builders);
+      } else {
+        recursion.copy(message, builder, recursion.count.applyAsInt(message));
+      }
+    }
+    Recursion recursion = binding.recursions[accessorIndex];
+    recursion.copy(message, builder, elementIndex);
+    recursion.add.accept(builder, scrubbed);
+    int count = recursion.count.applyAsInt(message);
+    for (int j = elementIndex + 1; j < count; j++) {
+      recursion.add.accept(builder, recursion.child.scrub((Message) recursion.get.get(message, j), builders));
+    }
+    for (int i = accessorIndex + 1; i < binding.accessors.length; i++) {
+      binding.accessors[i].merge(message, builder, builders);
+    }
+    return BuilderPool.build(builders, builder);
+  }
+
+  private static Binding bind(FieldMask2<?> mask, Class<?> messageClass) {
+    Class<?> builderClass;
+    try {
+      builderClass = messageClass.getMethod("newBuilder").getReturnType();
+    } catch (NoSuchMethodException e) {
+      throw new IllegalArgumentException("Not a generated message class: " + messageClass.getName(), e);
+    }
+    ScrubPlan.Op[] ops = mask.plan().ops;
+    Accessor[] accessors = new Accessor[ops.length];
+    for (int i = 0; i < ops.length; i++) {
+      accessors[i] = accessor(ops[i], messageClass, builderClass);
+    }
+    return new Binding(messageClass, accessors);
+  }
+
+  private static Accessor accessor(ScrubPlan.Op op, Class<?> messageClass, Class<?> builderClass) {
+    try {
+      Accessor accessor = typedAccessor(op, messageClass, builderClass);
+      if (accessor != null) {
+        return accessor;
+      }
+    } catch (ReflectiveOperationException e) {
+      // Unusual accessor naming, fall back to reflection for this field
+    }
+    return op.kind == ScrubPlan.Kind.RECURSE_MESSAGE || op.kind == ScrubPlan.Kind.RECURSE_REPEATED ? reflectiveRecursion(op) : op::merge;
+  }
+
+  private static Recursion reflectiveRecursion(ScrubPlan.Op op) {
+    Descriptors.FieldDescriptor field = op.field;
+    if (field.isRepeated()) {
+      return new Recursion(message -> ((Message) message).getRepeatedFieldCount(field),
+              (message, index) -> ((Message) message).getRepeatedField(field, index),
+              (builder, value) -> ((Message.Builder) builder).addRepeatedField(field, value),
+              op.child::scrubNested);
+    }
+    return new Recursion(message -> ((Message) message).hasField(field) ? 1 : 0,
+            (message, index) -> ((Message) message).getField(field),
+            (builder, value) -> ((Message.Builder) builder).setField(field, value),
+            op.child::scrubNested);
+  }
+
+  private static Accessor typedAccessor(ScrubPlan.Op op, Class<?> messageClass, Class<?> builderClass) throws ReflectiveOperationException {
+    Descriptors.FieldDescriptor field = op.field;
+    String name = accessorName(field);
+    // Open enums go through their numeric accessors so that unrecognized values survive
+    String valueName = isOpenEnum(field, messageClass, name) ? name + "Value" : name;
+
+    switch (op.kind) {
+      case COPY_SCALAR:
+      case KEEP_MESSAGE: {
+        Method getter = messageClass.getMethod("get" + valueName);
+        if (!isValueType(field, getter.getReturnType())) {
+          return null;
+        }
+        Function<Object, Object> get = getter(getter);
+        BiConsumer<Object, Object> set = setter(builderClass.getMethod("set" + valueName, getter.getReturnType()));
+        if (hasMethod(messageClass, "has" + name)) {
+          Predicate<Object> has = has(messageClass.getMethod("has" + name));
+          return (message, builder, builders) -> {
+            if (has.test(message)) {
+              set.accept(builder, get.apply(message));
+            }
+          };
+        }
+        if (hasPresence(field)) {
+          return null;
+        }
+        return (message, builder, builders) -> set.accept(builder, get.apply(message));
+      }
+      case COPY_REPEATED: {
+        ToIntFunction<Object> count = count(messageClass.getMethod("get" + name + "Count"));
+        if (field.isMapField()) {
+          if (field.getMessageType().findFieldByNumber(2).getJavaType() == Descriptors.FieldDescriptor.JavaType.ENUM) {
+            return null;
+          }
+          Function<Object, Object> get = getter(messageClass.getMethod("get" + name + "Map"));
+          BiConsumer<Object, Object> putAll = setter(builderClass.getMethod("putAll" + name, Map.class));
+          return (message, builder, builders) -> {
+            if (count.applyAsInt(message) > 0) {
+              putAll.accept(builder, get.apply(message));
+            }
+          };
+        }
+        if (!isValueType(field, messageClass.getMethod("get" + valueName, int.class).getReturnType())) {
+          return null;
+        }
+        Function<Object, Object> get = getter(messageClass.getMethod("get" + valueName + "List"));
+        BiConsumer<Object, Object> addAll = setter(builderClass.getMethod("addAll" + valueName, Iterable.class));
+        return (message, builder, builders) -> {
+          if (count.applyAsInt(message) > 0) {
+            addAll.accept(builder, get.apply(message));
+          }
+        };
+      }
+      case RECURSE_MESSAGE: {
+        Method getter = messageClass.getMethod("get" + name);
+        if (!isValueType(field, getter.getReturnType())) {
+          return null;
+        }
+        Predicate<Object> has = has(messageClass.getMethod("has" + name));
+        Function<Object, Object> get = getter(getter);
+        BiConsumer<Object, Object> set = setter(builderClass.getMethod("set" + name, getter.getReturnType()));
+        GeneratedScrubber<Message> child = childScrubber(op.child, getter.getReturnType());
+        return new Recursion(message -> has.test(message) ? 1 : 0, (message, index) -> get.apply(message), set, child::scrubNested);
+      }
+      case RECURSE_REPEATED: {
+        if (field.isMapField()) {
+          return null;
+        }
+        Method getter = messageClass.getMethod("get" + name, int.class);
+        if (!isValueType(field, getter.getReturnType())) {
+          return null;
+        }
+        IndexedGetter get = indexedGetter(getter);
+        ToIntFunction<Object> count = count(messageClass.getMethod("get" + name + "Count"));
+        BiConsumer<Object, Object> add = setter(builderClass.getMethod("add" + name, getter.getReturnType()));
+        GeneratedScrubber<Message> child = childScrubber(op.child, getter.getReturnType());
+        return new Recursion(count, get, add, child::scrubNested);
+      }
+      default:
+        return null;
+    }
+  }
+
+  private static boolean isOpenEnum(Descriptors.FieldDescriptor field, Class<?> messageClass, String name) {
+    if (field.getJavaType() != Descriptors.FieldDescriptor.JavaType.ENUM) {
+      return false;
+    }
+    try {
+      if (field.isRepeated()) {
+        messageClass.getMethod("get" + name + "Value", int.class);
+      } else {
+        messageClass.getMethod("get" + name + "Value");
+      }
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  // Guards against accessors that protoc renamed because they clash with
+  // methods inherited from the message base classes.
+  private static boolean isValueType(Descriptors.FieldDescriptor field, Class<?> type) throws ReflectiveOperationException {
+    switch (field.getJavaType()) {
+      case INT:
+        return type == int.class;
+      case LONG:
+        return type == long.class;
+      case FLOAT:
+        return type == float.class;
+      case DOUBLE:
+        return type == double.class;
+      case BOOLEAN:
+        return type == boolean.class;
+      case STRING:
+        return type == String.class;
+      case BYTE_STRING:
+        return type == ByteString.class;
+      case ENUM:
+        return type == int.class || (ProtocolMessageEnum.class.isAssignableFrom(type)
+                && type.getMethod("getDescriptor").invoke(null) == field.getEnumType());
+      case MESSAGE:
+        return Message.class.isAssignableFrom(type)
+                && type.getMethod("getDescriptor").invoke(null) == field.getMessageType();
+      default:
+        return false;
+    }
+  }
+
+  private static GeneratedScrubber<Message> childScrubber(FieldMask2<Message> mask, Class<?> messageClass) {
+    GeneratedScrubber<Message> child = new GeneratedScrubber<>(mask);
+    if (!mask.isKeepAll() && !mask.isKeepNone()) {
+      child.binding = bind(mask, messageClass);
+    }
+    return child;
+  }
+
+  private static boolean hasPresence(Descriptors.FieldDescriptor field) {
+    return field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE
+            || field.getContainingOneof() != null
+            || field.getFile().getSyntax() != Descriptors.FileDescriptor.Syntax.PROTO3;
+  }
+
+  private static boolean hasMethod(Class<?> type, String name) {
+    try {
+      type.getMethod(name);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  // Mirrors protoc's UnderscoresToCamelCase with the first letter capitalized.
+  static String accessorName(Descriptors.FieldDescriptor field) {
+    String name = field.getName();
+    StringBuilder sb = new StringBuilder(name.length());
+    boolean capitalizeNext = true;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c >= 'a' && c <= 'z') {
+        sb.append(capitalizeNext ? (char) (c - 'a' + 'A') : c);
+        capitalizeNext = false;
+      } else if (c >= 'A' && c <= 'Z') {
+        sb.append(c);
+        capitalizeNext = false;
+      } else if (c >= '0' && c <= '9') {
+        sb.append(c);
+        capitalizeNext = true;
+      } else {
+        capitalizeNext = true;
+      }
+    }
+    return sb.toString();
+  }
+
+  private static Function<Object, Object> getter(Method method) throws ReflectiveOperationException {
+    return lambda(Function.class, "apply", MethodType.methodType(Object.class, Object.class), method);
+  }
+
+  private static BiConsumer<Object, Object> setter(Method method) throws ReflectiveOperationException {
+    return lambda(BiConsumer.class, "accept", MethodType.methodType(void.class, Object.class, Object.class), method);
+  }
+
+  private static Predicate<Object> has(Method method) throws ReflectiveOperationException {
+    return lambda(Predicate.class, "test", MethodType.methodType(boolean.class, Object.class), method);
+  }
+
+  private static ToIntFunction<Object> count(Method method) throws ReflectiveOperationException {
+    return lambda(ToIntFunction.class, "applyAsInt", MethodType.methodType(int.class, Object.class), method);
+  }
+
+  private static IndexedGetter indexedGetter(Method method) throws ReflectiveOperationException {
+    return lambda(IndexedGetter.class, "get", MethodType.methodType(Object.class, Object.class, int.class), method);
+  }
+
+  private static <F> F lambda(Class<? super F> type, String name, MethodType samType, Method method) throws ReflectiveOperationException {
+    MethodHandle handle = LOOKUP.unreflect(method);
+    MethodType instantiatedType = handle.type();
+    for (int i = 0; i < samType.parameterCount(); i++) {
+      if (!samType.parameterType(i).isPrimitive()) {
+        instantiatedType = instantiatedType.changeParameterType(i, boxed(instantiatedType.parameterType(i)));
+      }
+    }
+    Class<?> returnType = samType.returnType();
+    instantiatedType = instantiatedType.changeReturnType(returnType.isPrimitive() ? returnType : boxed(instantiatedType.returnType()));
+    try {
+      return (F) LambdaMetafactory.metafactory(LOOKUP, name, MethodType.methodType(type), samType, handle, instantiatedType)
+              .getTarget()
+              .invoke();
+    } catch (ReflectiveOperationException | RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new ReflectiveOperationException(e);
+    }
+  }
+
+  private static Class<?> boxed(Class<?> type) {
+    return MethodType.methodType(type).wrap().returnType();
+  }
+
+  private interface Accessor {
+    void merge(Message message, Message.Builder builder, BuilderPool builders);
+  }
+
+  private interface IndexedGetter {
+    Object get(Object message, int index);
+  }
+
+  private interface Scrub {
+    Message scrub(Message message, BuilderPool builders);
+  }
+
+  // A message field the mask looks into, where a singular field has one element when set
+  private static final class Recursion implements Accessor {
+    private final ToIntFunction<Object> count;
+    private final IndexedGetter get;
+    // Sets a singular field
+    private final BiConsumer<Object, Object> add;
+    private final Scrub child;
+
+    private Recursion(ToIntFunction<Object> count, IndexedGetter get, BiConsumer<Object, Object> add, Scrub child) {
+      this.count = count;
+      this.get = get;
+      this.add = add;
+      this.child = child;
+    }
+
+    @Override
+    public void merge(Message message, Message.Builder builder, BuilderPool builders) {
+      int n = count.applyAsInt(message);
+      for (int i = 0; i < n; i++) {
+        add.accept(builder, child.scrub((Message) get.get(message, i), builders));
+      }
+    }
+
+    // Copies the elements before end without scrubbing them
+    private void copy(Message message, Message.Builder builder, int end) {
+      for (int i = 0; i < end; i++) {
+        add.accept(builder, get.get(message, i));
+      }
+    }
+  }
+
+  private static final class Binding {
+    private final Class<?> messageClass;
+    private final Accessor[] accessors;
+    // The accessors that are recursions, null for the others
+    private final Recursion[] recursions;
+
+    private Binding(Class<?> messageClass, Accessor[] accessors) {
+      this.messageClass = messageClass;
+      this.accessors = accessors;
+      this.recursions = new Recursion[accessors.length];
+      for (int i = 0; i < accessors.length; i++) {
+        if (accessors[i] instanceof Recursion) {
+          recursions[i] = (Recursion) accessors[i];
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,9 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.Descriptors;
+
+public class InvalidSelectorException extends FieldMaskException {
+  public InvalidSelectorException(Descriptors.Descriptor descriptor, String segment) {
+    super("Invalid key or index selector '" + segment + "' in " + descriptor.getFullName());
+  }
+}
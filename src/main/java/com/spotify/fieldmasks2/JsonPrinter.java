@@ -0,0 +1,440 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+// Prints the same JSON as JsonFormat.printer().print(mask.scrub(message)),
+// streamed from the original message without building the scrubbed copy.
+// Well-known types have their own JSON mappings and are scrubbed and handed
+// to JsonFormat.
+public final class JsonPrinter<T extends Message> {
+
+  private static final Set<String> WELL_KNOWN_TYPES = new HashSet<>(Arrays.asList(
+          "google.protobuf.Any",
+          "google.protobuf.BoolValue",
+          "google.protobuf.BytesValue",
+          "google.protobuf.DoubleValue",
+          "google.protobuf.FloatValue",
+          "google.protobuf.Int32Value",
+          "google.protobuf.Int64Value",
+          "google.protobuf.StringValue",
+          "google.protobuf.UInt32Value",
+          "google.protobuf.UInt64Value",
+          "google.protobuf.Timestamp",
+          "google.protobuf.Duration",
+          "google.protobuf.FieldMask",
+          "google.protobuf.Struct",
+          "google.protobuf.Value",
+          "google.protobuf.ListValue"));
+
+  private final FieldMask2<T> mask;
+  private final boolean includingDefaultValueFields;
+  private final boolean preservingProtoFieldNames;
+  private final boolean printingEnumsAsInts;
+  private final boolean omittingInsignificantWhitespace;
+  private final JsonFormat.Printer fallback;
+
+  JsonPrinter(FieldMask2<T> mask) {
+    this(mask, false, false, false, false);
+  }
+
+  private JsonPrinter(FieldMask2<T> mask, boolean includingDefaultValueFields, boolean preservingProtoFieldNames, boolean printingEnumsAsInts, boolean omittingInsignificantWhitespace) {
+    this.mask = mask;
+    this.includingDefaultValueFields = includingDefaultValueFields;
+    this.preservingProtoFieldNames = preservingProtoFieldNames;
+    this.printingEnumsAsInts = printingEnumsAsInts;
+    this.omittingInsignificantWhitespace = omittingInsignificantWhitespace;
+    JsonFormat.Printer fallback = JsonFormat.printer();
+    if (includingDefaultValueFields) {
+      fallback = fallback.includingDefaultValueFields();
+    }
+    if (preservingProtoFieldNames) {
+      fallback = fallback.preservingProtoFieldNames();
+    }
+    if (printingEnumsAsInts) {
+      fallback = fallback.printingEnumsAsInts();
+    }
+    if (omittingInsignificantWhitespace) {
+      fallback = fallback.omittingInsignificantWhitespace();
+    }
+    this.fallback = fallback;
+  }
+
+  public FieldMask2<T> getMask() {
+    return mask;
+  }
+
+  public JsonPrinter<T> includingDefaultValueFields() {
+    return new JsonPrinter<>(mask, true, preservingProtoFieldNames, printingEnumsAsInts, omittingInsignificantWhitespace);
+  }
+
+  public JsonPrinter<T> preservingProtoFieldNames() {
+    return new JsonPrinter<>(mask, includingDefaultValueFields, true, printingEnumsAsInts, omittingInsignificantWhitespace);
+  }
+
+  public JsonPrinter<T> printingEnumsAsInts() {
+    return new JsonPrinter<>(mask, includingDefaultValueFields, preservingProtoFieldNames, true, omittingInsignificantWhitespace);
+  }
+
+  public JsonPrinter<T> omittingInsignificantWhitespace() {
+    return new JsonPrinter<>(mask, includingDefaultValueFields, preservingProtoFieldNames, printingEnumsAsInts, true);
+  }
+
+  public void appendTo(T message, Appendable output) throws IOException {
+    mask.checkCompatible(message.getDescriptorForType());
+    FieldMask2<Message> root = (FieldMask2<Message>) mask;
+    new Generator(output, omittingInsignificantWhitespace).printMessage(message, root.isKeepAll() ? null : root);
+  }
+
+  public void writeTo(T message, OutputStream output) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    appendTo(message, writer);
+    writer.flush();
+  }
+
+  public String print(T message) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      appendTo(message, sb);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return sb.toString();
+  }
+
+  // Indents like the JsonFormat text generators: every line starts at the
+  // current indentation, so nested fallback output lines up as well.
+  private final class Generator implements Appendable {
+    private final Appendable output;
+    private final String blankOrNewLine;
+    private final String blankOrSpace;
+    private final StringBuilder indent = new StringBuilder();
+    private boolean atStartOfLine = true;
+
+    private Generator(Appendable output, boolean compact) {
+      this.output = output;
+      this.blankOrNewLine = compact ? "" : "\n";
+      this.blankOrSpace = compact ? "" : " ";
+    }
+
+    // A null mask keeps everything
+    void printMessage(Message message, FieldMask2<Message> mask) throws IOException {
+      Descriptors.Descriptor descriptor = message.getDescriptorForType();
+      if (WELL_KNOWN_TYPES.contains(descriptor.getFullName()) || (mask == null && descriptor.isExtendable())) {
+        fallback.appendTo(mask == null ? message : mask.scrubNested(message, null), this);
+        return;
+      }
+
+      append("{").append(blankOrNewLine);
+      indent.append("  ");
+      boolean printedField = false;
+      if (mask != null && !includingDefaultValueFields) {
+        for (ScrubPlan.Op op : mask.plan().ops) {
+          // Selected fields and maps that lose their keys are printed as scrubbed
+          boolean scrubbed = op.needsFieldOnly();
+          Message source = scrubbed ? op.fieldOnly(message) : message;
+          if (isPresent(source, op.field)) {
+            printedField = printSeparator(printedField);
+            printField(source, op.field, scrubbed || op.child == null || op.child.isKeepAll() ? null : op.child);
+          }
+        }
+      } else {
+        FieldNumbers fields = FieldNumbers.of(descriptor);
+        for (int i = 0; i < fields.size(); i++) {
+          Descriptors.FieldDescriptor field = fields.get(descriptor, i);
+          boolean kept = mask == null || mask.keeps(field);
+          ScrubPlan.Op op = kept && mask != null ? mask.plan().find(field.getNumber()) : null;
+          boolean scrubbed = op != null && op.needsFieldOnly();
+          Message source = scrubbed ? op.fieldOnly(message) : message;
+          if (kept && isPresent(source, field)) {
+            printedField = printSeparator(printedField);
+            printField(source, field, mask == null || scrubbed ? null : childMask(mask, field));
+          } else if (includingDefaultValueFields && !skipsDefault(field)) {
+            printedField = printSeparator(printedField);
+            printField(message.getDefaultInstanceForType(), field, null);
+          }
+        }
+      }
+      if (printedField) {
+        append(blankOrNewLine);
+      }
+      indent.setLength(indent.length() - 2);
+      append("}");
+    }
+
+    private FieldMask2<Message> childMask(FieldMask2<Message> mask, Descriptors.FieldDescriptor field) {
+      if (field.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+        return null;
+      }
+      FieldMask2<Message> child = mask.child(field);
+      return child.isKeepAll() ? null : child;
+    }
+
+    private boolean isPresent(Message message, Descriptors.FieldDescriptor field) {
+      return field.isRepeated() ? message.getRepeatedFieldCount(field) > 0 : message.hasField(field);
+    }
+
+    // Unset optional messages and unset oneof members are never printed as defaults
+    private boolean skipsDefault(Descriptors.FieldDescriptor field) {
+      return field.isOptional()
+              && (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE || field.getContainingOneof() != null);
+    }
+
+    private boolean printSeparator(boolean printedField) throws IOException {
+      if (printedField) {
+        append(",").append(blankOrNewLine);
+      }
+      return true;
+    }
+
+    private void printField(Message message, Descriptors.FieldDescriptor field, FieldMask2<Message> childMask) throws IOException {
+      append("\"").append(preservingProtoFieldNames ? field.getName() : field.getJsonName()).append("\":").append(blankOrSpace);
+      if (field.isMapField()) {
+        printMap(message, field, childMask);
+      } else if (field.isRepeated()) {
+        append("[");
+        int count = message.getRepeatedFieldCount(field);
+        for (int i = 0; i < count; i++) {
+          if (i > 0) {
+            append(",").append(blankOrSpace);
+          }
+          printValue(field, message.getRepeatedField(field, i), childMask, false);
+        }
+        append("]");
+      } else {
+        printValue(field, message.getField(field), childMask, false);
+      }
+    }
+
+    private void printMap(Message message, Descriptors.FieldDescriptor field, FieldMask2<Message> entryMask) throws IOException {
+      Descriptors.FieldDescriptor keyField = field.getMessageType().findFieldByName("key");
+      Descriptors.FieldDescriptor valueField = field.getMessageType().findFieldByName("value");
+      FieldMask2<Message> valueMask = entryMask == null || !entryMask.keeps(valueField) ? null : childMask(entryMask, valueField);
+
+      append("{").append(blankOrNewLine);
+      indent.append("  ");
+      int count = message.getRepeatedFieldCount(field);
+      for (int i = 0; i < count; i++) {
+        Message entry = (Message) message.getRepeatedField(field, i);
+        if (i > 0) {
+          append(",").append(blankOrNewLine);
+        }
+        // Key fields are always double-quoted
+        printValue(keyField, entryValue(entry, keyField, entryMask), null, true);
+        append(":").append(blankOrSpace);
+        printValue(valueField, entryValue(entry, valueField, entryMask), valueMask, false);
+      }
+      if (count > 0) {
+        append(blankOrNewLine);
+      }
+      indent.setLength(indent.length() - 2);
+      append("}");
+    }
+
+    private Object entryValue(Message entry, Descriptors.FieldDescriptor field, FieldMask2<Message> entryMask) {
+      if (entryMask == null || entryMask.keeps(field)) {
+        return entry.getField(field);
+      }
+      return entry.getDefaultInstanceForType().getField(field);
+    }
+
+    private void printValue(Descriptors.FieldDescriptor field, Object value, FieldMask2<Message> childMask, boolean alwaysWithQuotes) throws IOException {
+      switch (field.getType()) {
+        case INT32:
+        case SINT32:
+        case SFIXED32:
+          printQuotedIf(alwaysWithQuotes, Integer.toString((Integer) value));
+          break;
+        case INT64:
+        case SINT64:
+        case SFIXED64:
+          printQuotedIf(true, Long.toString((Long) value));
+          break;
+        case BOOL:
+          printQuotedIf(alwaysWithQuotes, (Boolean) value ? "true" : "false");
+          break;
+        case FLOAT: {
+          Float floatValue = (Float) value;
+          if (floatValue.isNaN()) {
+            append("\"NaN\"");
+          } else if (floatValue.isInfinite()) {
+            append(floatValue < 0 ? "\"-Infinity\"" : "\"Infinity\"");
+          } else {
+            printQuotedIf(alwaysWithQuotes, floatValue.toString());
+          }
+          break;
+        }
+        case DOUBLE: {
+          Double doubleValue = (Double) value;
+          if (doubleValue.isNaN()) {
+            append("\"NaN\"");
+          } else if (doubleValue.isInfinite()) {
+            append(doubleValue < 0 ? "\"-Infinity\"" : "\"Infinity\"");
+          } else {
+            printQuotedIf(alwaysWithQuotes, doubleValue.toString());
+          }
+          break;
+        }
+        case UINT32:
+        case FIXED32:
+          printQuotedIf(alwaysWithQuotes, Integer.toUnsignedString((Integer) value));
+          break;
+        case UINT64:
+        case FIXED64:
+          printQuotedIf(true, Long.toUnsignedString((Long) value));
+          break;
+        case STRING:
+          printString((String) value);
+          break;
+        case BYTES:
+          append("\"").append(Base64.getEncoder().encodeToString(((ByteString) value).toByteArray())).append("\"");
+          break;
+        case ENUM: {
+          Descriptors.EnumValueDescriptor enumValue = (Descriptors.EnumValueDescriptor) value;
+          if (field.getEnumType().getFullName().equals("google.protobuf.NullValue")) {
+            printQuotedIf(alwaysWithQuotes, "null");
+          } else if (printingEnumsAsInts || enumValue.getIndex() == -1) {
+            append(Integer.toString(enumValue.getNumber()));
+          } else {
+            append("\"").append(enumValue.getName()).append("\"");
+          }
+          break;
+        }
+        case MESSAGE:
+        case GROUP:
+          printMessage((Message) value, childMask);
+          break;
+      }
+    }
+
+    private void printQuotedIf(boolean quoted, String value) throws IOException {
+      if (quoted) {
+        append("\"").append(value).append("\"");
+      } else {
+        append(value);
+      }
+    }
+
+    // Escapes like the default (HTML-safe) Gson instance that JsonFormat uses.
+    private void printString(String value) throws IOException {
+      append("\"");
+      int last = 0;
+      int length = value.length();
+      for (int i = 0; i < length; i++) {
+        char c = value.charAt(i);
+        String replacement;
+        if (c < 0x20) {
+          switch (c) {
+            case '\t':
+              replacement = "\\t";
+              break;
+            case '\b':
+              replacement = "\\b";
+              break;
+            case '\n':
+              replacement = "\\n";
+              break;
+            case '\r':
+              replacement = "\\r";
+              break;
+            case '\f':
+              replacement = "\\f";
+              break;
+            default:
+              replacement = String.format("\\u%04x", (int) c);
+              break;
+          }
+        } else {
+          switch (c) {
+            case '"':
+              replacement = "\\\"";
+              break;
+            case '\\':
+              replacement = "\\\\";
+              break;
+            case '<':
+              replacement = "\\u003c";
+              break;
+            case '>':
+              replacement = "\\u003e";
+              break;
+            case '&':
+              replacement = "\\u0026";
+              break;
+            case '=':
+              replacement = "\\u003d";
+              break;
+            case '\'':
+              replacement = "\\u0027";
+              break;
+            case '\u2028':
+              replacement = "\\u2028";
+              break;
+            case '\u2029':
+              replacement = "\\u2029";
+              break;
+            default:
+              continue;
+          }
+        }
+        if (last < i) {
+          append(value, last, i);
+        }
+        append(replacement);
+        last = i + 1;
+      }
+      if (last < length) {
+        append(value, last, length);
+      }
+      append("\"");
+    }
+
+    @Override
+    public Generator append(CharSequence text) throws IOException {
+      return append(text, 0, text.length());
+    }
+
+    @Override
+    public Generator append(CharSequence text, int start, int end) throws IOException {
+      int pos = start;
+      for (int i = start; i < end; i++) {
+        if (text.charAt(i) == '\n') {
+          write(text, pos, i + 1);
+          pos = i + 1;
+          atStartOfLine = true;
+        }
+      }
+      write(text, pos, end);
+      return this;
+    }
+
+    @Override
+    public Generator append(char c) throws IOException {
+      return append(String.valueOf(c));
+    }
+
+    private void write(CharSequence text, int start, int end) throws IOException {
+      if (start == end) {
+        return;
+      }
+      if (atStartOfLine) {
+        atStartOfLine = false;
+        output.append(indent);
+      }
+      output.append(text, start, end);
+    }
+  }
+}
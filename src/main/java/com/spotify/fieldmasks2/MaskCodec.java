@@ -0,0 +1,234 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// The binary form of a mask. A node is a varint kind: 0 keeps nothing, 1
+// keeps everything, and 2 is followed by the number of kept fields and then,
+// in field number order, (number delta << 1 | has sub-mask) with the sub-mask
+// right after it. Numbers that the message type no longer has are skipped on
+// decoding, so encoded masks survive removed fields.
+//
+// Nodes with selected fields are kind 3, where a field is (number delta << 2 |
+// has selector << 1 | has sub-mask). A selector is a varint of (is map << 1 |
+// keeps rest), the rest, the number of keys or ranges, and for each the key as
+// a map entry that only has its key, or the start and end of the range,
+// followed by the element mask. Elements that aren't messages have keep-all
+// masks.
+final class MaskCodec {
+
+  private static final int KEEP_NONE = 0;
+  private static final int KEEP_ALL = 1;
+  private static final int FIELDS = 2;
+  private static final int SELECTED_FIELDS = 3;
+
+  private MaskCodec() {
+  }
+
+  static void write(FieldMask2<Message> mask, CodedOutputStream output) throws IOException {
+    if (mask.isKeepNone()) {
+      output.writeUInt32NoTag(KEEP_NONE);
+      return;
+    }
+    if (mask.isKeepAll()) {
+      output.writeUInt32NoTag(KEEP_ALL);
+      return;
+    }
+    List<Descriptors.FieldDescriptor> kept = new ArrayList<>();
+    boolean selected = false;
+    for (Descriptors.FieldDescriptor field : mask.descriptor().getFields()) {
+      if (mask.keeps(field)) {
+        kept.add(field);
+        selected |= mask.selector(field) != null;
+      }
+    }
+    kept.sort(Comparator.comparingInt(Descriptors.FieldDescriptor::getNumber));
+    output.writeUInt32NoTag(selected ? SELECTED_FIELDS : FIELDS);
+    output.writeUInt32NoTag(kept.size());
+    int previous = 0;
+    for (Descriptors.FieldDescriptor field : kept) {
+      FieldMask2<Message> child = mask.childAt(field.getIndex());
+      Selector selector = mask.selector(field);
+      int delta = field.getNumber() - previous;
+      output.writeUInt32NoTag(selected
+              ? delta << 2 | (selector != null ? 2 : 0) | (child != null ? 1 : 0)
+              : delta << 1 | (child != null ? 1 : 0));
+      previous = field.getNumber();
+      if (child != null) {
+        write(child, output);
+      }
+      if (selector != null) {
+        writeSelector(selector, output);
+      }
+    }
+  }
+
+  private static void writeSelector(Selector selector, CodedOutputStream output) throws IOException {
+    Descriptors.FieldDescriptor field = selector.field();
+    output.writeUInt32NoTag((selector.isMap() ? 2 : 0) | (selector.keepsRest() ? 1 : 0));
+    if (selector.keepsRest()) {
+      writeElementMask(selector.rest(), output);
+    }
+    output.writeUInt32NoTag(selector.size());
+    for (int item = 0; item < selector.size(); item++) {
+      if (selector.isMap()) {
+        Descriptors.Descriptor entry = field.getMessageType();
+        output.writeBytesNoTag(DynamicMessage.newBuilder(entry)
+                .setField(entry.findFieldByNumber(1), selector.key(item))
+                .build()
+                .toByteString());
+      } else {
+        output.writeUInt32NoTag(selector.start(item));
+        output.writeUInt32NoTag(selector.end(item));
+      }
+      writeElementMask(selector.mask(item), output);
+    }
+  }
+
+  private static void writeElementMask(FieldMask2<Message> mask, CodedOutputStream output) throws IOException {
+    if (mask == null) {
+      output.writeUInt32NoTag(KEEP_ALL);
+    } else {
+      write(mask, output);
+    }
+  }
+
+  static FieldMask2<Message> read(Descriptors.Descriptor descriptor, CodedInputStream input) throws IOException {
+    int kind = input.readRawVarint32();
+    switch (kind) {
+      case KEEP_NONE:
+        return FieldMask2.keepNone(descriptor);
+      case KEEP_ALL:
+        return FieldMask2.keepAll(descriptor);
+      case FIELDS:
+      case SELECTED_FIELDS:
+        break;
+      default:
+        throw new InvalidProtocolBufferException("Not an encoded mask, unknown node kind " + kind);
+    }
+    boolean selected = kind == SELECTED_FIELDS;
+    int count = input.readRawVarint32();
+    long[] fieldBits = FieldMask2.newFieldBits(descriptor);
+    FieldMask2<Message>[] children = FieldMask2.newChildren(descriptor);
+    Selector[] selectors = selected ? new Selector[children.length] : null;
+    int number = 0;
+    for (int i = 0; i < count; i++) {
+      int value = input.readRawVarint32();
+      boolean hasChild = (value & 1) != 0;
+      boolean hasSelector = selected && (value & 2) != 0;
+      number += selected ? value >>> 2 : value >>> 1;
+      Descriptors.FieldDescriptor field = descriptor.findFieldByNumber(number);
+      if (field == null) {
+        if (hasChild) {
+          skip(input);
+        }
+        if (hasSelector) {
+          skipSelector(input);
+        }
+        continue;
+      }
+      if (hasChild) {
+        if (field.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+          throw new PrimitiveFieldException(descriptor, field.getName());
+        }
+        children[field.getIndex()] = read(field.getMessageType(), input);
+      } else if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+        children[field.getIndex()] = FieldMask2.keepAll(field.getMessageType());
+      }
+      FieldMask2.set(fieldBits, field.getIndex());
+      if (hasSelector) {
+        FieldMask2.select(readSelector(field, input), fieldBits, children, selectors);
+      }
+    }
+    return FieldMask2.of(descriptor, fieldBits, children, selectors);
+  }
+
+  private static Selector readSelector(Descriptors.FieldDescriptor field, CodedInputStream input) throws IOException {
+    int flags = input.readRawVarint32();
+    boolean isMap = (flags & 2) != 0;
+    if (!field.isRepeated() || isMap != field.isMapField()) {
+      throw new InvalidProtocolBufferException("Selector doesn't match field " + field.getFullName());
+    }
+    boolean keepsRest = (flags & 1) != 0;
+    FieldMask2<Message> rest = keepsRest ? readElementMask(field, input) : null;
+    int count = input.readRawVarint32();
+    if (isMap) {
+      Descriptors.Descriptor entry = field.getMessageType();
+      SortedMap<Object, FieldMask2<Message>> masks = new TreeMap<>();
+      for (int i = 0; i < count; i++) {
+        Object key = DynamicMessage.parseFrom(entry, input.readBytes()).getField(entry.findFieldByNumber(1));
+        masks.put(key, readElementMask(field, input));
+      }
+      return Selector.keys(field, keepsRest, rest, masks);
+    }
+    Selector selector = Selector.whole(field, keepsRest, rest);
+    for (int i = 0; i < count; i++) {
+      int start = input.readRawVarint32();
+      int end = input.readRawVarint32();
+      selector = selector.union(Selector.range(field, start, end, readElementMask(field, input)));
+    }
+    return selector;
+  }
+
+  private static FieldMask2<Message> readElementMask(Descriptors.FieldDescriptor field, CodedInputStream input) throws IOException {
+    if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+      return read(field.getMessageType(), input);
+    }
+    if (input.readRawVarint32() != KEEP_ALL) {
+      throw new PrimitiveFieldException(field.getContainingType(), field.getName());
+    }
+    return null;
+  }
+
+  private static void skip(CodedInputStream input) throws IOException {
+    int kind = input.readRawVarint32();
+    switch (kind) {
+      case KEEP_NONE:
+      case KEEP_ALL:
+        return;
+      case FIELDS:
+      case SELECTED_FIELDS:
+        break;
+      default:
+        throw new InvalidProtocolBufferException("Not an encoded mask, unknown node kind " + kind);
+    }
+    int count = input.readRawVarint32();
+    for (int i = 0; i < count; i++) {
+      int value = input.readRawVarint32();
+      if ((value & 1) != 0) {
+        skip(input);
+      }
+      if (kind == SELECTED_FIELDS && (value & 2) != 0) {
+        skipSelector(input);
+      }
+    }
+  }
+
+  private static void skipSelector(CodedInputStream input) throws IOException {
+    int flags = input.readRawVarint32();
+    if ((flags & 1) != 0) {
+      skip(input);
+    }
+    int count = input.readRawVarint32();
+    for (int i = 0; i < count; i++) {
+      if ((flags & 2) != 0) {
+        input.skipRawBytes(input.readRawVarint32());
+      } else {
+        input.readRawVarint32();
+        input.readRawVarint32();
+      }
+      skip(input);
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Many named masks in one file, in the binary form of FieldMask2.toBinary.
+// The file is memory mapped, so opening it reads only the index and processes
+// on one host share its pages. A mask is decoded against the template's
+// descriptor the first time it is asked for with that descriptor, and kept
+// for later lookups.
+//
+// Layout: the magic "FM2R", a version and the entry count, then one index
+// entry per mask, sorted by the UTF-8 bytes of the name, of name, message type
+// and mask as (offset, length) pairs, then the data they point into. All ints
+// are big-endian, so a registry file is limited to 2GB.
+public final class MaskRegistry {
+
+  private static final int MAGIC = 0x464d3252;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 12;
+  private static final int ENTRY_SIZE = 24;
+
+  private final ByteBuffer buffer;
+  private final int count;
+  // By descriptor, as the same type from another descriptor pool needs its own mask
+  private final Map<Descriptors.Descriptor, Map<String, FieldMask2<?>>> decoded = new ConcurrentHashMap<>();
+
+  private MaskRegistry(ByteBuffer buffer) throws IOException {
+    if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a mask registry");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported mask registry version " + buffer.getInt(4));
+    }
+    this.buffer = buffer;
+    this.count = buffer.getInt(8);
+    if (count < 0 || (long) HEADER_SIZE + (long) count * ENTRY_SIZE > buffer.limit()) {
+      throw new IOException("Truncated mask registry");
+    }
+    // Every slice lies in the data, so lookups never read outside the file
+    int data = entry(count);
+    for (int i = 0; i < count; i++) {
+      for (int field = 0; field < ENTRY_SIZE; field += 8) {
+        long offset = buffer.getInt(entry(i) + field);
+        long length = buffer.getInt(entry(i) + field + 4);
+        if (offset < data || length < 0 || offset + length > buffer.limit()) {
+          throw new IOException("Corrupt mask registry index entry " + i);
+        }
+      }
+    }
+  }
+
+  public static MaskRegistry open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Mask registry is too large: " + channel.size());
+      }
+      return new MaskRegistry(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  // Replaces the file atomically where the file system allows it, so open
+  // registries keep their old mapping
+  public static void write(Path path, Map<String, ? extends FieldMask2<?>> masks) throws IOException {
+    List<byte[]> names = new ArrayList<>();
+    for (String name : masks.keySet()) {
+      names.add(name.getBytes(StandardCharsets.UTF_8));
+    }
+    names.sort(MaskRegistry::compare);
+
+    int count = names.size();
+    byte[][] types = new byte[count][];
+    ByteString[] encoded = new ByteString[count];
+    long size = HEADER_SIZE + (long) count * ENTRY_SIZE;
+    for (int i = 0; i < count; i++) {
+      FieldMask2<?> mask = masks.get(new String(names.get(i), StandardCharsets.UTF_8));
+      types[i] = mask.descriptor().getFullName().getBytes(StandardCharsets.UTF_8);
+      encoded[i] = mask.toBinary();
+      size += names.get(i).length + types[i].length + encoded[i].size();
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Masks don't fit in a mask registry: " + size + " bytes");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate((int) size);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(count);
+    int offset = HEADER_SIZE + count * ENTRY_SIZE;
+    for (int i = 0; i < count; i++) {
+      buffer.putInt(offset).putInt(names.get(i).length);
+      offset += names.get(i).length;
+      buffer.putInt(offset).putInt(types[i].length);
+      offset += types[i].length;
+      buffer.putInt(offset).putInt(encoded[i].size());
+      offset += encoded[i].size();
+    }
+    for (int i = 0; i < count; i++) {
+      buffer.put(names.get(i));
+      buffer.put(types[i]);
+      encoded[i].copyTo(buffer);
+    }
+    buffer.flip();
+
+    Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+      try {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public boolean contains(String name) {
+    return find(name) >= 0;
+  }
+
+  public List<String> names() {
+    List<String> names = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      names.add(string(entry(i), 0));
+    }
+    return names;
+  }
+
+  // The full name of the message type that the mask was written for, or null
+  public String messageType(String name) {
+    int index = find(name);
+    return index < 0 ? null : string(entry(index), 8);
+  }
+
+  // Null if there is no mask with that name. Fields that were removed from the
+  // message type since the registry was written are left out of the mask.
+  public <T extends Message> FieldMask2<T> get(String name, T template) {
+    Descriptors.Descriptor descriptor = template.getDescriptorForType();
+    Map<String, FieldMask2<?>> masks = decoded.get(descriptor);
+    if (masks == null) {
+      masks = decoded.computeIfAbsent(descriptor, d -> new ConcurrentHashMap<>());
+    }
+    FieldMask2<?> mask = masks.get(name);
+    if (mask == null) {
+      int index = find(name);
+      if (index < 0) {
+        return null;
+      }
+      mask = decode(name, entry(index), descriptor);
+      FieldMask2<?> previous = masks.putIfAbsent(name, mask);
+      if (previous != null) {
+        mask = previous;
+      }
+    }
+    return (FieldMask2<T>) mask;
+  }
+
+  private FieldMask2<?> decode(String name, int entry, Descriptors.Descriptor descriptor) {
+    String messageType = string(entry, 8);
+    if (!messageType.equals(descriptor.getFullName())) {
+      throw new IllegalArgumentException("Mask " + name + " is for " + messageType + ", not " + descriptor.getFullName());
+    }
+    try {
+      return FieldMask2.fromBinary(descriptor, CodedInputStream.newInstance(slice(entry, 16)));
+    } catch (InvalidProtocolBufferException | RuntimeException e) {
+      throw new IllegalStateException("Corrupt mask registry entry " + name, e);
+    }
+  }
+
+  private int find(String name) {
+    byte[] key = name.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compare(entry(mid), key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private static int entry(int index) {
+    return HEADER_SIZE + index * ENTRY_SIZE;
+  }
+
+  // Compares the name of an entry to a key without copying the name
+  private int compare(int entry, byte[] key) {
+    int offset = buffer.getInt(entry);
+    int length = buffer.getInt(entry + 4);
+    int common = Math.min(length, key.length);
+    for (int i = 0; i < common; i++) {
+      int cmp = Integer.compare(buffer.get(offset + i) & 0xff, key[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(length, key.length);
+  }
+
+  private static int compare(byte[] a, byte[] b) {
+    int common = Math.min(a.length, b.length);
+    for (int i = 0; i < common; i++) {
+      int cmp = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(a.length, b.length);
+  }
+
+  private String string(int entry, int field) {
+    ByteBuffer slice = slice(entry, field);
+    byte[] bytes = new byte[slice.remaining()];
+    slice.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private ByteBuffer slice(int entry, int field) {
+    ByteBuffer slice = buffer.duplicate();
+    int offset = buffer.getInt(entry + field);
+    slice.limit(offset + buffer.getInt(entry + field + 4));
+    slice.position(offset);
+    return slice.slice();
+  }
+}
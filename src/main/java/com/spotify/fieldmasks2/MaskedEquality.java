@@ -0,0 +1,223 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Compares and hashes messages the way their scrubbed views would compare, by
+// walking the mask over the original messages instead of building the views.
+// Map fields compare as maps, like Message.equals does.
+final class MaskedEquality {
+
+  private static final long SEED = 0x6A09E667F3BCC908L;
+  private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private MaskedEquality() {
+  }
+
+  static boolean equals(FieldMask2<Message> mask, Message a, Message b) {
+    if (a == b || mask.isKeepNone()) {
+      return true;
+    }
+    if (mask.isKeepAll()) {
+      return a.equals(b);
+    }
+    for (ScrubPlan.Op op : mask.plan().ops) {
+      // Selected fields are compared as scrubbed
+      boolean equal = op.kind == ScrubPlan.Kind.SELECT
+              ? fieldEquals(op.field, null, op.fieldOnly(a), op.fieldOnly(b))
+              : fieldEquals(op.field, childOf(mask, op.field), a, b);
+      if (!equal) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // child is the mask of a message field, or null to compare the whole value
+  static boolean fieldEquals(Descriptors.FieldDescriptor field, FieldMask2<Message> child, Message a, Message b) {
+    if (!field.isRepeated()) {
+      boolean present = a.hasField(field);
+      if (present != b.hasField(field)) {
+        return false;
+      }
+      return !present || valueEquals(child, a.getField(field), b.getField(field));
+    }
+    int count = a.getRepeatedFieldCount(field);
+    int otherCount = b.getRepeatedFieldCount(field);
+    if (field.isMapField()) {
+      return count == 0 && otherCount == 0 || mapEquals(field, child, a, b);
+    }
+    if (count != otherCount) {
+      return false;
+    }
+    for (int i = 0; i < count; i++) {
+      if (!valueEquals(child, a.getRepeatedField(field, i), b.getRepeatedField(field, i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean valueEquals(FieldMask2<Message> child, Object a, Object b) {
+    return child == null ? a.equals(b) : equals(child, (Message) a, (Message) b);
+  }
+
+  private static boolean mapEquals(Descriptors.FieldDescriptor field, FieldMask2<Message> child, Message a, Message b) {
+    Map<Object, Message> entries = entries(field, child, a);
+    Map<Object, Message> otherEntries = entries(field, child, b);
+    if (entries.size() != otherEntries.size()) {
+      return false;
+    }
+    for (Map.Entry<Object, Message> entry : entries.entrySet()) {
+      Message other = otherEntries.get(entry.getKey());
+      if (other == null || !valueEquals(child, entry.getValue(), other)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Later entries replace earlier ones with the same key. A mask that drops
+  // the key leaves every scrubbed entry with the default key.
+  private static Map<Object, Message> entries(Descriptors.FieldDescriptor field, FieldMask2<Message> child, Message message) {
+    Descriptors.FieldDescriptor keyField = field.getMessageType().findFieldByNumber(1);
+    boolean keepsKey = child == null || child.keeps(keyField);
+    int count = message.getRepeatedFieldCount(field);
+    Map<Object, Message> entries = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      Message entry = (Message) message.getRepeatedField(field, i);
+      entries.put(keepsKey ? entry.getField(keyField) : keyField.getDefaultValue(), entry);
+    }
+    return entries;
+  }
+
+  // Only depends on field numbers and values, so it is the same in every JVM
+  static long hash(FieldMask2<Message> mask, Message message) {
+    long hash = SEED;
+    if (mask.isKeepNone()) {
+      return finish(hash);
+    }
+    if (mask.isKeepAll()) {
+      return hashAll(message);
+    }
+    for (ScrubPlan.Op op : mask.plan().ops) {
+      hash = op.kind == ScrubPlan.Kind.SELECT
+              ? hashField(hash, op.field, null, op.fieldOnly(message))
+              : hashField(hash, op.field, childOf(mask, op.field), message);
+    }
+    return finish(hash);
+  }
+
+  private static long hashAll(Message message) {
+    long hash = SEED;
+    Descriptors.Descriptor descriptor = message.getDescriptorForType();
+    for (Descriptors.FieldDescriptor field : descriptor.getFields()) {
+      hash = hashField(hash, field, null, message);
+    }
+    if (descriptor.isExtendable()) {
+      for (Descriptors.FieldDescriptor field : message.getAllFields().keySet()) {
+        if (field.isExtension()) {
+          hash = hashField(hash, field, null, message);
+        }
+      }
+    }
+    if (!message.getUnknownFields().asMap().isEmpty()) {
+      hash = hashBytes(hash, message.getUnknownFields().toByteString());
+    }
+    return finish(hash);
+  }
+
+  private static long hashField(long hash, Descriptors.FieldDescriptor field, FieldMask2<Message> child, Message message) {
+    if (!field.isRepeated()) {
+      if (!message.hasField(field)) {
+        return hash;
+      }
+      return hashValue(mix(hash, field.getNumber()), field, child, message.getField(field));
+    }
+    int count = message.getRepeatedFieldCount(field);
+    if (count == 0) {
+      return hash;
+    }
+    hash = mix(hash, field.getNumber());
+    if (field.isMapField()) {
+      // Entries are summed so that their order doesn't matter
+      long sum = 0;
+      for (Message entry : entries(field, child, message).values()) {
+        sum += hashMessage(child, entry);
+      }
+      return mix(hash, sum);
+    }
+    hash = mix(hash, count);
+    for (int i = 0; i < count; i++) {
+      hash = hashValue(hash, field, child, message.getRepeatedField(field, i));
+    }
+    return hash;
+  }
+
+  private static long hashValue(long hash, Descriptors.FieldDescriptor field, FieldMask2<Message> child, Object value) {
+    switch (field.getJavaType()) {
+      case INT:
+        return mix(hash, (Integer) value);
+      case LONG:
+        return mix(hash, (Long) value);
+      case FLOAT:
+        return mix(hash, Float.floatToIntBits((Float) value));
+      case DOUBLE:
+        return mix(hash, Double.doubleToLongBits((Double) value));
+      case BOOLEAN:
+        return mix(hash, (Boolean) value ? 1 : 0);
+      case STRING:
+        return hashString(hash, (String) value);
+      case BYTE_STRING:
+        return hashBytes(hash, (ByteString) value);
+      case ENUM:
+        return mix(hash, ((Descriptors.EnumValueDescriptor) value).getNumber());
+      case MESSAGE:
+        return mix(hash, hashMessage(child, (Message) value));
+      default:
+        throw new IllegalStateException("Unexpected type: " + field.getJavaType());
+    }
+  }
+
+  private static long hashString(long hash, String value) {
+    hash = mix(hash, value.length());
+    for (int i = 0; i < value.length(); i++) {
+      hash = mix(hash, value.charAt(i));
+    }
+    return hash;
+  }
+
+  private static long hashBytes(long hash, ByteString value) {
+    hash = mix(hash, value.size());
+    for (ByteString.ByteIterator it = value.iterator(); it.hasNext(); ) {
+      hash = mix(hash, it.nextByte());
+    }
+    return hash;
+  }
+
+  private static long hashMessage(FieldMask2<Message> child, Message message) {
+    return child == null ? hashAll(message) : hash(child, message);
+  }
+
+  private static FieldMask2<Message> childOf(FieldMask2<Message> mask, Descriptors.FieldDescriptor field) {
+    return field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE ? mask.child(field) : null;
+  }
+
+  private static long mix(long hash, long value) {
+    return Long.rotateLeft(hash ^ (value * MULTIPLIER), 29) * MULTIPLIER;
+  }
+
+  // The murmur3 finalizer, so that every input bit affects every output bit
+  private static long finish(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
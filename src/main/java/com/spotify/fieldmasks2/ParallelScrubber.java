@@ -0,0 +1,116 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.Message;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+// Scrubs repeated message fields with at least threshold elements in parallel
+// chunks. Large fields are found at the top level and below singular message
+// fields. Everything else is scrubbed exactly like FieldMask2.scrub.
+public final class ParallelScrubber<T extends Message> {
+
+  private static final int DEFAULT_THRESHOLD = 1024;
+  private static final int MIN_CHUNK_SIZE = 256;
+
+  private final FieldMask2<T> mask;
+  private final Executor executor;
+  private final int parallelism;
+  private final int threshold;
+
+  private ParallelScrubber(FieldMask2<T> mask, Executor executor, int threshold) {
+    if (threshold < 1) {
+      throw new IllegalArgumentException("threshold must be positive: " + threshold);
+    }
+    this.mask = mask;
+    this.executor = executor;
+    this.parallelism = Chunks.parallelism(executor);
+    this.threshold = threshold;
+  }
+
+  public static <T extends Message> ParallelScrubber<T> of(FieldMask2<T> mask) {
+    return new ParallelScrubber<>(mask, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+  }
+
+  public ParallelScrubber<T> withExecutor(Executor executor) {
+    return new ParallelScrubber<>(mask, executor, threshold);
+  }
+
+  public ParallelScrubber<T> withThreshold(int threshold) {
+    return new ParallelScrubber<>(mask, executor, threshold);
+  }
+
+  public FieldMask2<T> getMask() {
+    return mask;
+  }
+
+  public T scrub(T message) {
+    ScrubListener listener = mask.listener();
+    if (listener != null) {
+      long start = System.nanoTime();
+      T scrubbed = (T) scrub((FieldMask2<Message>) mask, message);
+      long nanos = System.nanoTime() - start;
+      listener.onScrub(mask, ScrubEvent.scrub((FieldMask2<Message>) mask, message, scrubbed, nanos));
+      return scrubbed;
+    }
+    return (T) scrub((FieldMask2<Message>) mask, message);
+  }
+
+  private Message scrub(FieldMask2<Message> mask, Message message) {
+    // A single thread gains nothing from chunking, it only pays for the handoffs
+    if (parallelism < 2 || mask.isKeepAll() || mask.isKeepNone() || !hasLargeField(mask, message)) {
+      return mask.scrubNested(message, null);
+    }
+    mask.checkCompatible(message.getDescriptorForType());
+    Message.Builder builder = message.newBuilderForType();
+    for (ScrubPlan.Op op : mask.plan().ops) {
+      switch (op.kind) {
+        case RECURSE_MESSAGE:
+          if (message.hasField(op.field)) {
+            builder.setField(op.field, scrub(op.child, (Message) message.getField(op.field)));
+          }
+          break;
+        case RECURSE_REPEATED:
+          if (message.getRepeatedFieldCount(op.field) >= threshold) {
+            builder.setField(op.field, Arrays.asList(scrubElements(op, message)));
+          } else {
+            op.merge(message, builder);
+          }
+          break;
+        default:
+          op.merge(message, builder);
+          break;
+      }
+    }
+    return builder.build();
+  }
+
+  private boolean hasLargeField(FieldMask2<Message> mask, Message message) {
+    for (ScrubPlan.Op op : mask.plan().ops) {
+      if (op.kind == ScrubPlan.Kind.RECURSE_REPEATED && message.getRepeatedFieldCount(op.field) >= threshold) {
+        return true;
+      }
+      if (op.kind == ScrubPlan.Kind.RECURSE_MESSAGE && !op.child.isKeepNone()
+              && message.hasField(op.field) && hasLargeField(op.child, (Message) message.getField(op.field))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Message[] scrubElements(ScrubPlan.Op op, Message message) {
+    int count = message.getRepeatedFieldCount(op.field);
+    Message[] scrubbed = new Message[count];
+    Chunks.run(count, Chunks.chunkSize(count, parallelism, MIN_CHUNK_SIZE), executor,
+            (from, to) -> scrubRange(op, message, scrubbed, from, to));
+    return scrubbed;
+  }
+
+  private static void scrubRange(ScrubPlan.Op op, Message message, Message[] scrubbed, int from, int to) {
+    BuilderPool builders = new BuilderPool();
+    for (int i = from; i < to; i++) {
+      scrubbed[i] = op.child.scrubNested((Message) message.getRepeatedField(op.field, i), builders);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.Message;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Memoizes mask.scrub for message instances that are scrubbed over and over,
+// like entities shared from an in-process cache. Messages are immutable, so a
+// result stays valid for as long as its input lives. Inputs are weakly held
+// and looked up by identity; collected inputs are dropped on the next insert.
+// Eviction is first in, first out: beyond maximumSize the oldest entry goes,
+// however often it was hit, so inputs cycling through more than maximumSize
+// instances never hit. Hits take no lock, inserts take one.
+public final class ScrubCache<T extends Message> {
+
+  private final FieldMask2<T> mask;
+  private final int maximumSize;
+  private final ConcurrentHashMap<WeakIdentityKey<Message>, Message> results = new ConcurrentHashMap<>();
+  // Guarded by itself, like every change to results. Also still holds the keys of collected inputs.
+  private final ArrayDeque<WeakIdentityKey<Message>> insertionOrder = new ArrayDeque<>();
+  private final ReferenceQueue<Message> collected = new ReferenceQueue<>();
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+
+  public ScrubCache(FieldMask2<T> mask, int maximumSize) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+    }
+    this.mask = mask;
+    this.maximumSize = maximumSize;
+  }
+
+  public FieldMask2<T> getMask() {
+    return mask;
+  }
+
+  public T scrub(T message) {
+    if (mask.isKeepAll() || mask.isKeepNone()) {
+      return mask.scrub(message);
+    }
+    Message cached = results.get(new WeakIdentityKey<>(message, null));
+    if (cached != null) {
+      hitCount.increment();
+      return (T) cached;
+    }
+    missCount.increment();
+    T scrubbed = mask.scrub(message);
+    // Nothing to save, and the entry would keep its own key reachable
+    if (scrubbed == message) {
+      return scrubbed;
+    }
+    WeakIdentityKey<Message> key = new WeakIdentityKey<>(message, collected);
+    synchronized (insertionOrder) {
+      expungeCollected();
+      Message existing = results.putIfAbsent(key, scrubbed);
+      if (existing != null) {
+        return (T) existing;
+      }
+      insertionOrder.add(key);
+      evictIfNeeded();
+    }
+    return scrubbed;
+  }
+
+  public long size() {
+    return results.size();
+  }
+
+  public CacheStats stats() {
+    return new CacheStats(hitCount.sum(), missCount.sum(), evictionCount.sum());
+  }
+
+  public void invalidateAll() {
+    synchronized (insertionOrder) {
+      results.clear();
+      insertionOrder.clear();
+    }
+  }
+
+  private void expungeCollected() {
+    Object key;
+    while ((key = collected.poll()) != null) {
+      results.remove(key);
+    }
+  }
+
+  private void evictIfNeeded() {
+    while (results.size() > maximumSize) {
+      WeakIdentityKey<Message> oldest = insertionOrder.poll();
+      if (oldest == null) {
+        return;
+      }
+      if (results.remove(oldest) != null) {
+        evictionCount.increment();
+      }
+    }
+    // Keys of collected inputs left the map already, drop them here before they pile up
+    if (insertionOrder.size() > 2 * maximumSize) {
+      insertionOrder.removeIf(key -> !results.containsKey(key));
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+// What one scrub or merge call did. Fields count set fields of the input
+// messages the mask descended into; a field kept as a whole counts once, and
+// so does a repeated field. The counts take another walk over the input, so
+// they are only computed when first asked for, on the asking thread. An event
+// keeps the input reachable, so listeners should not hold on to it.
+public final class ScrubEvent {
+
+  public enum Kind {
+    SCRUB,
+    MERGE
+  }
+
+  private final Kind kind;
+  private final long durationNanos;
+  private final FieldMask2<Message> mask;
+  private final Message message;
+  // Null for a merge
+  private final Message scrubbed;
+  private boolean counted;
+  private long fieldsVisited;
+  private long fieldsCopied;
+  private long repeatedElements;
+  private long bytesRemoved;
+
+  private ScrubEvent(Kind kind, long durationNanos, FieldMask2<Message> mask, Message message, Message scrubbed) {
+    this.kind = kind;
+    this.durationNanos = durationNanos;
+    this.mask = mask;
+    this.message = message;
+    this.scrubbed = scrubbed;
+  }
+
+  static ScrubEvent scrub(FieldMask2<Message> mask, Message message, Message scrubbed, long durationNanos) {
+    return new ScrubEvent(Kind.SCRUB, durationNanos, mask, message, scrubbed);
+  }
+
+  static ScrubEvent merge(FieldMask2<Message> mask, Message message, long durationNanos) {
+    return new ScrubEvent(Kind.MERGE, durationNanos, mask, message, null);
+  }
+
+  private void count() {
+    if (counted) {
+      return;
+    }
+    counted = true;
+    if (kind == Kind.MERGE) {
+      bytesRemoved = message.getSerializedSize() - mask.getScrubbedSerializedSize(message);
+    } else if (scrubbed != message) {
+      bytesRemoved = message.getSerializedSize() - scrubbed.getSerializedSize();
+    }
+    count(mask, message);
+  }
+
+  private void count(FieldMask2<Message> mask, Message message) {
+    for (Descriptors.FieldDescriptor field : message.getDescriptorForType().getFields()) {
+      int count = field.isRepeated() ? message.getRepeatedFieldCount(field) : message.hasField(field) ? 1 : 0;
+      if (count == 0) {
+        continue;
+      }
+      fieldsVisited++;
+      if (!mask.keeps(field)) {
+        continue;
+      }
+      fieldsCopied++;
+      if (mask.selector(field) != null) {
+        repeatedElements += mask.plan().find(field.getNumber()).fieldOnly(message).getRepeatedFieldCount(field);
+        continue;
+      }
+      if (field.isRepeated()) {
+        repeatedElements += count;
+      }
+      if (field.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+        continue;
+      }
+      FieldMask2<Message> child = mask.child(field);
+      if (child.isKeepAll() || child.isKeepNone()) {
+        continue;
+      }
+      if (field.isRepeated()) {
+        for (int i = 0; i < count; i++) {
+          count(child, (Message) message.getRepeatedField(field, i));
+        }
+      } else {
+        count(child, (Message) message.getField(field));
+      }
+    }
+  }
+
+  public Kind kind() {
+    return kind;
+  }
+
+  public long durationNanos() {
+    return durationNanos;
+  }
+
+  public long fieldsVisited() {
+    count();
+    return fieldsVisited;
+  }
+
+  public long fieldsCopied() {
+    count();
+    return fieldsCopied;
+  }
+
+  // Elements of the kept repeated fields
+  public long repeatedElements() {
+    count();
+    return repeatedElements;
+  }
+
+  // Serialized size of the input minus that of the scrubbed message
+  public long bytesRemoved() {
+    count();
+    return bytesRemoved;
+  }
+
+  @Override
+  public String toString() {
+    return "ScrubEvent{kind=" + kind + ", durationNanos=" + durationNanos + ", fieldsVisited=" + fieldsVisited()
+            + ", fieldsCopied=" + fieldsCopied() + ", repeatedElements=" + repeatedElements() + ", bytesRemoved=" + bytesRemoved() + "}";
+  }
+}
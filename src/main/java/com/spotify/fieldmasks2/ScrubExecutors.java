@@ -0,0 +1,45 @@
+package com.spotify.fieldmasks2;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+
+// Executors for the batch scrubbing APIs. Virtual threads are looked up
+// reflectively so that the library still runs on Java 8.
+public final class ScrubExecutors {
+
+  private static final ThreadFactory VIRTUAL_THREAD_FACTORY = virtualThreadFactory();
+
+  private ScrubExecutors() {
+  }
+
+  public static Executor commonPool() {
+    return ForkJoinPool.commonPool();
+  }
+
+  public static boolean virtualThreadsAvailable() {
+    return VIRTUAL_THREAD_FACTORY != null;
+  }
+
+  // Starts one virtual thread per task
+  public static Executor virtualThreads() {
+    ThreadFactory factory = VIRTUAL_THREAD_FACTORY;
+    if (factory == null) {
+      throw new UnsupportedOperationException("Virtual threads are not available on Java " + System.getProperty("java.version"));
+    }
+    return task -> factory.newThread(task).start();
+  }
+
+  private static ThreadFactory virtualThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+    } catch (InvocationTargetException e) {
+      // Preview feature on a JDK that runs without --enable-preview
+      return null;
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}
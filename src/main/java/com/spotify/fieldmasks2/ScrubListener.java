@@ -0,0 +1,14 @@
+package com.spotify.fieldmasks2;
+
+// Receives an event after every top-level scrub and merge call of a mask while
+// it is installed with FieldMask2.setListener or FieldMask2.withListener,
+// including the calls of GeneratedScrubber, ParallelScrubber and scrubAll.
+// A fan-out scrubAll over many masks reports each mask with the whole walk's duration.
+// Scrubs of nested messages are part of the event of the outermost call.
+// Called on the scrubbing thread, so it should be cheap and thread safe; the
+// event counters cost another walk over the input, so read them sparingly.
+// ScrubMetrics is a ready-made one.
+public interface ScrubListener {
+
+  void onScrub(FieldMask2<?> mask, ScrubEvent event);
+}
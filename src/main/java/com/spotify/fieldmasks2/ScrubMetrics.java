@@ -0,0 +1,155 @@
+package com.spotify.fieldmasks2;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// A ScrubListener that sums up the events per mask, to be read by whatever
+// metrics library is in use. Equal masks are the same instance, so every
+// distinct mask gets one entry, and so does every copy made by withListener;
+// toString and toFieldMask make usable labels.
+// Masks are held weakly, so the entries of per-request masks go away with
+// them. Calls and latency are counted for every event, while the fields and
+// bytes, which take another walk over the input, only for one in sampleRate.
+public final class ScrubMetrics implements ScrubListener {
+
+  private static final int DEFAULT_SAMPLE_RATE = 64;
+
+  private final ConcurrentHashMap<WeakIdentityKey<FieldMask2<?>>, MaskMetrics> masks = new ConcurrentHashMap<>();
+  private final ReferenceQueue<FieldMask2<?>> collected = new ReferenceQueue<>();
+  private final int sampleRate;
+
+  public ScrubMetrics() {
+    this(DEFAULT_SAMPLE_RATE);
+  }
+
+  // A sample rate of 1 counts the fields and bytes of every call
+  public ScrubMetrics(int sampleRate) {
+    if (sampleRate < 1) {
+      throw new IllegalArgumentException("sampleRate must be positive: " + sampleRate);
+    }
+    this.sampleRate = sampleRate;
+  }
+
+  @Override
+  public void onScrub(FieldMask2<?> mask, ScrubEvent event) {
+    MaskMetrics metrics = masks.get(new WeakIdentityKey<>(mask, null));
+    if (metrics == null) {
+      Object key;
+      while ((key = collected.poll()) != null) {
+        masks.remove(key);
+      }
+      metrics = masks.computeIfAbsent(new WeakIdentityKey<>(mask, collected), k -> new MaskMetrics());
+    }
+    metrics.record(event, sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0);
+  }
+
+  // Null for a mask that was never used
+  public MaskMetrics get(FieldMask2<?> mask) {
+    return masks.get(new WeakIdentityKey<>(mask, null));
+  }
+
+  // A snapshot of the masks that are still in use
+  public Map<FieldMask2<?>, MaskMetrics> masks() {
+    Map<FieldMask2<?>, MaskMetrics> snapshot = new HashMap<>();
+    masks.forEach((key, metrics) -> {
+      FieldMask2<?> mask = key.get();
+      if (mask != null) {
+        snapshot.put(mask, metrics);
+      }
+    });
+    return snapshot;
+  }
+
+  public void reset() {
+    masks.clear();
+  }
+
+  public static final class MaskMetrics {
+    // Bucket i counts calls that took [2^i, 2^(i+1)) nanoseconds
+    private static final int BUCKETS = 64;
+
+    private final LongAdder scrubCount = new LongAdder();
+    private final LongAdder mergeCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder sampledCount = new LongAdder();
+    private final LongAdder fieldsVisited = new LongAdder();
+    private final LongAdder fieldsCopied = new LongAdder();
+    private final LongAdder repeatedElements = new LongAdder();
+    private final LongAdder bytesRemoved = new LongAdder();
+    private final LongAdder[] latency = new LongAdder[BUCKETS];
+
+    private MaskMetrics() {
+      for (int i = 0; i < BUCKETS; i++) {
+        latency[i] = new LongAdder();
+      }
+    }
+
+    private void record(ScrubEvent event, boolean sampled) {
+      (event.kind() == ScrubEvent.Kind.SCRUB ? scrubCount : mergeCount).increment();
+      long nanos = Math.max(1, event.durationNanos());
+      totalNanos.add(nanos);
+      latency[63 - Long.numberOfLeadingZeros(nanos)].increment();
+      if (!sampled) {
+        return;
+      }
+      sampledCount.increment();
+      fieldsVisited.add(event.fieldsVisited());
+      fieldsCopied.add(event.fieldsCopied());
+      repeatedElements.add(event.repeatedElements());
+      bytesRemoved.add(event.bytesRemoved());
+    }
+
+    public long scrubCount() {
+      return scrubCount.sum();
+    }
+
+    public long mergeCount() {
+      return mergeCount.sum();
+    }
+
+    public long totalNanos() {
+      return totalNanos.sum();
+    }
+
+    public long[] latencyHistogram() {
+      long[] histogram = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+        histogram[i] = latency[i].sum();
+      }
+      return histogram;
+    }
+
+    // Calls whose fields and bytes were counted. The field and byte sums are over
+    // these calls; scale them by (scrubCount + mergeCount) / sampledCount for all.
+    public long sampledCount() {
+      return sampledCount.sum();
+    }
+
+    public long fieldsVisited() {
+      return fieldsVisited.sum();
+    }
+
+    public long fieldsCopied() {
+      return fieldsCopied.sum();
+    }
+
+    public long repeatedElements() {
+      return repeatedElements.sum();
+    }
+
+    public long bytesRemoved() {
+      return bytesRemoved.sum();
+    }
+
+    @Override
+    public String toString() {
+      return "MaskMetrics{scrubs=" + scrubCount() + ", merges=" + mergeCount() + ", totalNanos=" + totalNanos()
+              + ", sampled=" + sampledCount() + ", fieldsVisited=" + fieldsVisited() + ", fieldsCopied=" + fieldsCopied()
+              + ", repeatedElements=" + repeatedElements() + ", bytesRemoved=" + bytesRemoved() + "}";
+    }
+  }
+}
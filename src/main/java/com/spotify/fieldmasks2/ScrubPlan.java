@@ -0,0 +1,293 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.Message;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+final class ScrubPlan {
+
+  // Null where the method can't be reached, getAllFields is used instead
+  private static final MethodHandle EXTENSIONS_SIZE = extensionsSize();
+
+  enum Kind {
+    COPY_SCALAR,
+    COPY_REPEATED,
+    KEEP_MESSAGE,
+    RECURSE_MESSAGE,
+    RECURSE_REPEATED,
+    // Keeps some map keys or element indexes, see Selector
+    SELECT
+  }
+
+  static final class Op {
+    final Kind kind;
+    final Descriptors.FieldDescriptor field;
+    final FieldMask2<Message> child;
+    final Selector selector;
+
+    private Op(Kind kind, Descriptors.FieldDescriptor field, FieldMask2<Message> child) {
+      this(kind, field, child, null);
+    }
+
+    private Op(Kind kind, Descriptors.FieldDescriptor field, FieldMask2<Message> child, Selector selector) {
+      this.kind = kind;
+      this.field = field;
+      this.child = child;
+      this.selector = selector;
+    }
+
+    void copy(Message message, Message.Builder builder) {
+      if (field.isRepeated()) {
+        copyRepeated(message, builder);
+      } else if (message.hasField(field)) {
+        builder.setField(field, message.getField(field));
+      }
+    }
+
+    // An empty target takes the whole list at once instead of element by element
+    private void copyRepeated(Message message, Message.Builder builder) {
+      int count = message.getRepeatedFieldCount(field);
+      if (count == 0) {
+        return;
+      }
+      if (kind == Kind.SELECT) {
+        selector.merge(message, builder, null);
+        return;
+      }
+      if (builder.getRepeatedFieldCount(field) == 0) {
+        builder.setField(field, message.getField(field));
+        return;
+      }
+      for (int i = 0; i < count; i++) {
+        builder.addRepeatedField(field, message.getRepeatedField(field, i));
+      }
+    }
+
+    void merge(Message message, Message.Builder builder) {
+      merge(message, builder, null);
+    }
+
+    void merge(Message message, Message.Builder builder, BuilderPool builders) {
+      switch (kind) {
+        case COPY_SCALAR:
+        case KEEP_MESSAGE:
+          if (message.hasField(field)) {
+            builder.setField(field, message.getField(field));
+          }
+          break;
+        case COPY_REPEATED:
+          copyRepeated(message, builder);
+          break;
+        case RECURSE_MESSAGE:
+          if (message.hasField(field)) {
+            builder.setField(field, child.scrubNested((Message) message.getField(field), builders));
+          }
+          break;
+        case RECURSE_REPEATED: {
+          int count = message.getRepeatedFieldCount(field);
+          for (int i = 0; i < count; i++) {
+            builder.addRepeatedField(field, child.scrubNested((Message) message.getRepeatedField(field, i), builders));
+          }
+          break;
+        }
+        case SELECT:
+          selector.merge(message, builder, builders);
+          break;
+      }
+    }
+
+    // Selected fields, and map fields whose entries lose their key, are only
+    // right in a built message: entries without a key collapse into one, and
+    // how depends on the message implementation. Engines that stream the
+    // scrubbed view take these fields from fieldOnly.
+    boolean needsFieldOnly() {
+      return kind == Kind.SELECT
+              || field.isMapField() && child != null && !child.keeps(field.getMessageType().findFieldByNumber(1));
+    }
+
+    // A message with nothing but this field, as the scrubbed message has it
+    Message fieldOnly(Message message) {
+      Message.Builder builder = message.newBuilderForType();
+      merge(message, builder);
+      return builder.build();
+    }
+  }
+
+  final Op[] ops;
+  private final int[] numbers;
+  private final Descriptors.FieldDescriptor[] dropped;
+  private final boolean extendable;
+  private final boolean selecting;
+
+  private ScrubPlan(Op[] ops, Descriptors.FieldDescriptor[] dropped, boolean extendable, boolean selecting) {
+    this.ops = ops;
+    this.numbers = new int[ops.length];
+    for (int i = 0; i < ops.length; i++) {
+      numbers[i] = ops[i].field.getNumber();
+    }
+    this.dropped = dropped;
+    this.extendable = extendable;
+    this.selecting = selecting;
+  }
+
+  static ScrubPlan compile(Descriptors.Descriptor descriptor, long[] fieldBits, FieldMask2<Message>[] children, Selector[] selectors) {
+    List<Op> ops = new ArrayList<>();
+    List<Descriptors.FieldDescriptor> dropped = new ArrayList<>();
+    FieldNumbers fields = FieldNumbers.of(descriptor);
+    for (int i = 0; i < fields.size(); i++) {
+      Descriptors.FieldDescriptor field = fields.get(descriptor, i);
+      if (!FieldMask2.isSet(fieldBits, field.getIndex())) {
+        dropped.add(field);
+        continue;
+      }
+      FieldMask2<Message> child = children[field.getIndex()];
+      if (selectors != null && selectors[field.getIndex()] != null) {
+        ops.add(new Op(Kind.SELECT, field, null, selectors[field.getIndex()]));
+      } else if (child == null) {
+        ops.add(new Op(field.isRepeated() ? Kind.COPY_REPEATED : Kind.COPY_SCALAR, field, null));
+      } else if (child.isKeepAll()) {
+        ops.add(new Op(field.isRepeated() ? Kind.COPY_REPEATED : Kind.KEEP_MESSAGE, field, child));
+      } else {
+        ops.add(new Op(field.isRepeated() ? Kind.RECURSE_REPEATED : Kind.RECURSE_MESSAGE, field, child));
+      }
+    }
+    return new ScrubPlan(ops.toArray(new Op[0]), dropped.toArray(new Descriptors.FieldDescriptor[0]), descriptor.isExtendable(), selectors != null);
+  }
+
+  // Returns the message itself when the mask would not remove anything from
+  // it, so unchanged subtrees are shared instead of copied, and the default
+  // instance when it would remove everything.
+  Message scrub(Message message, BuilderPool builders) {
+    if (hasDroppedFields(message)) {
+      if (!hasKeptFields(message)) {
+        return message.getDefaultInstanceForType();
+      }
+      Message.Builder builder = BuilderPool.acquire(builders, message);
+      for (Op op : ops) {
+        op.merge(message, builder, builders);
+      }
+      return BuilderPool.build(builders, builder);
+    }
+    for (int i = 0; i < ops.length; i++) {
+      Op op = ops[i];
+      if (op.kind == Kind.RECURSE_MESSAGE) {
+        if (message.hasField(op.field)) {
+          Message value = (Message) message.getField(op.field);
+          Message scrubbed = op.child.scrubNested(value, builders);
+          if (scrubbed != value) {
+            return rebuild(message, i, 0, scrubbed, builders);
+          }
+        }
+      } else if (op.kind == Kind.RECURSE_REPEATED) {
+        int count = message.getRepeatedFieldCount(op.field);
+        for (int j = 0; j < count; j++) {
+          Message value = (Message) message.getRepeatedField(op.field, j);
+          Message scrubbed = op.child.scrubNested(value, builders);
+          if (scrubbed != value) {
+            return rebuild(message, i, j, scrubbed, builders);
+          }
+        }
+      }
+    }
+    return message;
+  }
+
+  // Everything before (opIndex, elementIndex) is known to be unchanged, so it is
+  // copied as is rather than scrubbed a second time.
+  private Message rebuild(Message message, int opIndex, int elementIndex, Message scrubbed, BuilderPool builders) {
+    Message.Builder builder = BuilderPool.acquire(builders, message);
+    for (int i = 0; i < opIndex; i++) {
+      ops[i].copy(message, builder);
+    }
+    Op op = ops[opIndex];
+    if (op.field.isRepeated()) {
+      int count = message.getRepeatedFieldCount(op.field);
+      for (int j = 0; j < elementIndex; j++) {
+        builder.addRepeatedField(op.field, message.getRepeatedField(op.field, j));
+      }
+      builder.addRepeatedField(op.field, scrubbed);
+      for (int j = elementIndex + 1; j < count; j++) {
+        builder.addRepeatedField(op.field, op.child.scrubNested((Message) message.getRepeatedField(op.field, j), builders));
+      }
+    } else {
+      builder.setField(op.field, scrubbed);
+    }
+    for (int i = opIndex + 1; i < ops.length; i++) {
+      ops[i].merge(message, builder, builders);
+    }
+    return BuilderPool.build(builders, builder);
+  }
+
+  boolean hasKeptFields(Message message) {
+    for (Op op : ops) {
+      if (op.field.isRepeated() ? message.getRepeatedFieldCount(op.field) > 0 : message.hasField(op.field)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Fields, unknown fields or extensions the mask drops, or selected elements, directly in the message
+  boolean hasDroppedFields(Message message) {
+    if (!message.getUnknownFields().asMap().isEmpty()) {
+      return true;
+    }
+    for (Descriptors.FieldDescriptor field : dropped) {
+      if (field.isRepeated() ? message.getRepeatedFieldCount(field) > 0 : message.hasField(field)) {
+        return true;
+      }
+    }
+    // Selected fields are always rebuilt, finding out whether they drop elements costs about as much
+    if (selecting) {
+      for (Op op : ops) {
+        if (op.kind == Kind.SELECT && message.getRepeatedFieldCount(op.field) > 0) {
+          return true;
+        }
+      }
+    }
+    // Every extension is dropped, and no regular field is, so only extensions are left to look for
+    return extendable && hasExtensions(message);
+  }
+
+  private boolean hasExtensions(Message message) {
+    if (EXTENSIONS_SIZE != null && message instanceof GeneratedMessageV3.ExtendableMessage) {
+      try {
+        return (int) EXTENSIONS_SIZE.invokeExact((GeneratedMessageV3.ExtendableMessage) message) != 0;
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    // Cheap for DynamicMessage, whose fields are a map already
+    int kept = 0;
+    for (Op op : ops) {
+      if (op.field.isRepeated() ? message.getRepeatedFieldCount(op.field) > 0 : message.hasField(op.field)) {
+        kept++;
+      }
+    }
+    return message.getAllFields().size() != kept;
+  }
+
+  // Generated messages build a TreeMap of their fields for getAllFields. The size of their
+  // extensions is zero without walking anything when none are set, but it is protected.
+  private static MethodHandle extensionsSize() {
+    try {
+      Method method = GeneratedMessageV3.ExtendableMessage.class.getDeclaredMethod("extensionsSerializedSize");
+      method.setAccessible(true);
+      return MethodHandles.lookup().unreflect(method);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  Op find(int number) {
+    int index = Arrays.binarySearch(numbers, number);
+    return index >= 0 ? ops[index] : null;
+  }
+}
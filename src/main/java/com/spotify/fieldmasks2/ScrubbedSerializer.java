@@ -0,0 +1,307 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Serializes the scrubbed view of a message straight from the original, in
+// the same field order and encoding as the generated serializers. The size
+// pass records the length of every scrubbed submessage and packed field in
+// visiting order, and the write pass consumes them in that same order.
+// Fields that are serialized from a built message, see Op.needsFieldOnly,
+// keep that message from the size pass the same way.
+final class ScrubbedSerializer {
+
+  private int[] sizes = new int[16];
+  private int recorded;
+  private int consumed;
+  private Message[] built = new Message[4];
+  private int builtRecorded;
+  private int builtConsumed;
+
+  int size(ScrubPlan plan, Message message) {
+    int size = 0;
+    for (ScrubPlan.Op op : plan.ops) {
+      Descriptors.FieldDescriptor field = op.field;
+      switch (op.kind) {
+        case COPY_SCALAR:
+        case KEEP_MESSAGE:
+          if (message.hasField(field)) {
+            size += fieldSize(field, message.getField(field));
+          }
+          break;
+        case COPY_REPEATED:
+          size += repeatedSize(field, message);
+          break;
+        case RECURSE_MESSAGE:
+          if (message.hasField(field)) {
+            size += nestedSize(op, (Message) message.getField(field));
+          }
+          break;
+        case RECURSE_REPEATED: {
+          if (op.needsFieldOnly()) {
+            size += fieldOnlySize(op, message);
+            break;
+          }
+          int count = message.getRepeatedFieldCount(field);
+          for (int i = 0; i < count; i++) {
+            size += nestedSize(op, (Message) message.getRepeatedField(field, i));
+          }
+          break;
+        }
+        case SELECT:
+          size += fieldOnlySize(op, message);
+          break;
+      }
+    }
+    return size;
+  }
+
+  void write(ScrubPlan plan, Message message, CodedOutputStream output) throws IOException {
+    for (ScrubPlan.Op op : plan.ops) {
+      Descriptors.FieldDescriptor field = op.field;
+      switch (op.kind) {
+        case COPY_SCALAR:
+        case KEEP_MESSAGE:
+          if (message.hasField(field)) {
+            writeField(output, field, message.getField(field));
+          }
+          break;
+        case COPY_REPEATED:
+          writeRepeated(output, field, message);
+          break;
+        case RECURSE_MESSAGE:
+          if (message.hasField(field)) {
+            writeNested(output, op, (Message) message.getField(field));
+          }
+          break;
+        case RECURSE_REPEATED: {
+          if (op.needsFieldOnly()) {
+            built[builtConsumed++].writeTo(output);
+            break;
+          }
+          int count = message.getRepeatedFieldCount(field);
+          for (int i = 0; i < count; i++) {
+            writeNested(output, op, (Message) message.getRepeatedField(field, i));
+          }
+          break;
+        }
+        case SELECT:
+          built[builtConsumed++].writeTo(output);
+          break;
+      }
+    }
+  }
+
+  private int fieldOnlySize(ScrubPlan.Op op, Message message) {
+    Message fieldOnly = op.fieldOnly(message);
+    if (builtRecorded == built.length) {
+      built = Arrays.copyOf(built, builtRecorded * 2);
+    }
+    built[builtRecorded++] = fieldOnly;
+    return fieldOnly.getSerializedSize();
+  }
+
+  private int nestedSize(ScrubPlan.Op op, Message value) {
+    int slot = reserve();
+    int size = size(op.child.plan(), value);
+    sizes[slot] = size;
+    int tagSize = CodedOutputStream.computeTagSize(op.field.getNumber());
+    if (op.field.getType() == Descriptors.FieldDescriptor.Type.GROUP) {
+      return 2 * tagSize + size;
+    }
+    return tagSize + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+  }
+
+  private void writeNested(CodedOutputStream output, ScrubPlan.Op op, Message value) throws IOException {
+    int size = sizes[consumed++];
+    if (op.field.getType() == Descriptors.FieldDescriptor.Type.GROUP) {
+      output.writeTag(op.field.getNumber(), WireFormat.WIRETYPE_START_GROUP);
+      write(op.child.plan(), value, output);
+      output.writeTag(op.field.getNumber(), WireFormat.WIRETYPE_END_GROUP);
+    } else {
+      output.writeTag(op.field.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(size);
+      write(op.child.plan(), value, output);
+    }
+  }
+
+  private int repeatedSize(Descriptors.FieldDescriptor field, Message message) {
+    int count = message.getRepeatedFieldCount(field);
+    if (count == 0) {
+      return 0;
+    }
+    if (field.isPacked()) {
+      int dataSize = 0;
+      for (int i = 0; i < count; i++) {
+        dataSize += elementSize(field.getType(), message.getRepeatedField(field, i));
+      }
+      sizes[reserve()] = dataSize;
+      return CodedOutputStream.computeTagSize(field.getNumber()) + CodedOutputStream.computeUInt32SizeNoTag(dataSize) + dataSize;
+    }
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+      size += fieldSize(field, message.getRepeatedField(field, i));
+    }
+    return size;
+  }
+
+  private void writeRepeated(CodedOutputStream output, Descriptors.FieldDescriptor field, Message message) throws IOException {
+    int count = message.getRepeatedFieldCount(field);
+    if (count == 0) {
+      return;
+    }
+    if (field.isPacked()) {
+      output.writeTag(field.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(sizes[consumed++]);
+      for (int i = 0; i < count; i++) {
+        writeElement(output, field.getType(), message.getRepeatedField(field, i));
+      }
+      return;
+    }
+    for (int i = 0; i < count; i++) {
+      writeField(output, field, message.getRepeatedField(field, i));
+    }
+  }
+
+  private static int fieldSize(Descriptors.FieldDescriptor field, Object value) {
+    int tagSize = CodedOutputStream.computeTagSize(field.getNumber());
+    if (field.getType() == Descriptors.FieldDescriptor.Type.GROUP) {
+      tagSize *= 2;
+    }
+    return tagSize + elementSize(field.getType(), value);
+  }
+
+  private static void writeField(CodedOutputStream output, Descriptors.FieldDescriptor field, Object value) throws IOException {
+    if (field.getType() == Descriptors.FieldDescriptor.Type.GROUP) {
+      output.writeTag(field.getNumber(), WireFormat.WIRETYPE_START_GROUP);
+      ((Message) value).writeTo(output);
+      output.writeTag(field.getNumber(), WireFormat.WIRETYPE_END_GROUP);
+      return;
+    }
+    output.writeTag(field.getNumber(), field.getLiteType().getWireType());
+    writeElement(output, field.getType(), value);
+  }
+
+  private static int elementSize(Descriptors.FieldDescriptor.Type type, Object value) {
+    switch (type) {
+      case DOUBLE:
+        return CodedOutputStream.computeDoubleSizeNoTag((Double) value);
+      case FLOAT:
+        return CodedOutputStream.computeFloatSizeNoTag((Float) value);
+      case INT64:
+        return CodedOutputStream.computeInt64SizeNoTag((Long) value);
+      case UINT64:
+        return CodedOutputStream.computeUInt64SizeNoTag((Long) value);
+      case INT32:
+        return CodedOutputStream.computeInt32SizeNoTag((Integer) value);
+      case FIXED64:
+        return CodedOutputStream.computeFixed64SizeNoTag((Long) value);
+      case FIXED32:
+        return CodedOutputStream.computeFixed32SizeNoTag((Integer) value);
+      case BOOL:
+        return CodedOutputStream.computeBoolSizeNoTag((Boolean) value);
+      case STRING:
+        return value instanceof ByteString
+                ? CodedOutputStream.computeBytesSizeNoTag((ByteString) value)
+                : CodedOutputStream.computeStringSizeNoTag((String) value);
+      case GROUP:
+        return ((Message) value).getSerializedSize();
+      case MESSAGE:
+        return CodedOutputStream.computeMessageSizeNoTag((Message) value);
+      case BYTES:
+        return CodedOutputStream.computeBytesSizeNoTag((ByteString) value);
+      case UINT32:
+        return CodedOutputStream.computeUInt32SizeNoTag((Integer) value);
+      case ENUM:
+        return CodedOutputStream.computeEnumSizeNoTag(((Descriptors.EnumValueDescriptor) value).getNumber());
+      case SFIXED32:
+        return CodedOutputStream.computeSFixed32SizeNoTag((Integer) value);
+      case SFIXED64:
+        return CodedOutputStream.computeSFixed64SizeNoTag((Long) value);
+      case SINT32:
+        return CodedOutputStream.computeSInt32SizeNoTag((Integer) value);
+      case SINT64:
+        return CodedOutputStream.computeSInt64SizeNoTag((Long) value);
+      default:
+        throw new IllegalArgumentException("Unsupported field type: " + type);
+    }
+  }
+
+  private static void writeElement(CodedOutputStream output, Descriptors.FieldDescriptor.Type type, Object value) throws IOException {
+    switch (type) {
+      case DOUBLE:
+        output.writeDoubleNoTag((Double) value);
+        break;
+      case FLOAT:
+        output.writeFloatNoTag((Float) value);
+        break;
+      case INT64:
+        output.writeInt64NoTag((Long) value);
+        break;
+      case UINT64:
+        output.writeUInt64NoTag((Long) value);
+        break;
+      case INT32:
+        output.writeInt32NoTag((Integer) value);
+        break;
+      case FIXED64:
+        output.writeFixed64NoTag((Long) value);
+        break;
+      case FIXED32:
+        output.writeFixed32NoTag((Integer) value);
+        break;
+      case BOOL:
+        output.writeBoolNoTag((Boolean) value);
+        break;
+      case STRING:
+        if (value instanceof ByteString) {
+          output.writeBytesNoTag((ByteString) value);
+        } else {
+          output.writeStringNoTag((String) value);
+        }
+        break;
+      case GROUP:
+        ((Message) value).writeTo(output);
+        break;
+      case MESSAGE:
+        output.writeMessageNoTag((Message) value);
+        break;
+      case BYTES:
+        output.writeBytesNoTag((ByteString) value);
+        break;
+      case UINT32:
+        output.writeUInt32NoTag((Integer) value);
+        break;
+      case ENUM:
+        output.writeEnumNoTag(((Descriptors.EnumValueDescriptor) value).getNumber());
+        break;
+      case SFIXED32:
+        output.writeSFixed32NoTag((Integer) value);
+        break;
+      case SFIXED64:
+        output.writeSFixed64NoTag((Long) value);
+        break;
+      case SINT32:
+        output.writeSInt32NoTag((Integer) value);
+        break;
+      case SINT64:
+        output.writeSInt64NoTag((Long) value);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported field type: " + type);
+    }
+  }
+
+  private int reserve() {
+    if (recorded == sizes.length) {
+      sizes = Arrays.copyOf(sizes, recorded * 2);
+    }
+    return recorded++;
+  }
+}
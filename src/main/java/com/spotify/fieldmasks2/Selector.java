@@ -0,0 +1,417 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BinaryOperator;
+
+// The elements of a repeated field that a mask keeps: map entries by key, as
+// in attributes["locale"], or elements of other repeated fields by index
+// range, as in items[0:10]. Each key or range has the mask for its elements,
+// null for elements that aren't messages. Other elements are dropped, unless
+// a path to the whole field also kept them, as "items.id,items[0]" does; their
+// mask is then the rest.
+//
+// Selected map entries always keep their key, and paths below a key refer to
+// the value of the entry.
+final class Selector {
+
+  // An element that is dropped, where element masks are combined
+  private static final Object DROP = new Object();
+
+  private final Descriptors.FieldDescriptor field;
+  // The key field of map entries, null for index ranges
+  private final Descriptors.FieldDescriptor keyField;
+  // Map keys in natural order
+  private final Object[] keys;
+  // Disjoint index ranges [starts[i], ends[i]) in order, Integer.MAX_VALUE for an open end
+  private final int[] starts;
+  private final int[] ends;
+  private final FieldMask2<Message>[] masks;
+  private final boolean keepsRest;
+  private final FieldMask2<Message> rest;
+  private final int hashCode;
+
+  private Selector(Descriptors.FieldDescriptor field, Object[] keys, int[] starts, int[] ends,
+                   FieldMask2<Message>[] masks, boolean keepsRest, FieldMask2<Message> rest) {
+    this.field = field;
+    this.keyField = field.isMapField() ? field.getMessageType().findFieldByNumber(1) : null;
+    this.keys = keys;
+    this.starts = starts;
+    this.ends = ends;
+    this.masks = masks;
+    this.keepsRest = keepsRest;
+    this.rest = keepsRest ? rest : null;
+    int result = Objects.hash(field, keepsRest, this.rest);
+    result = 31 * result + Arrays.hashCode(keys);
+    result = 31 * result + Arrays.hashCode(starts);
+    result = 31 * result + Arrays.hashCode(ends);
+    this.hashCode = 31 * result + Arrays.hashCode(masks);
+  }
+
+  // A whole field, or a dropped one, so that it can be combined with selectors
+  static Selector whole(Descriptors.FieldDescriptor field, boolean kept, FieldMask2<Message> child) {
+    return field.isMapField()
+            ? new Selector(field, new Object[0], null, null, newMasks(0), kept, child)
+            : new Selector(field, null, new int[0], new int[0], newMasks(0), kept, child);
+  }
+
+  static Selector keys(Descriptors.FieldDescriptor field, boolean keepsRest, FieldMask2<Message> rest, SortedMap<Object, FieldMask2<Message>> masks) {
+    Map<Object, Object> items = new TreeMap<>();
+    for (Map.Entry<Object, FieldMask2<Message>> entry : masks.entrySet()) {
+      items.put(entry.getKey(), entry.getValue());
+    }
+    return ofKeys(field, keepsRest ? rest : DROP, items);
+  }
+
+  static Selector range(Descriptors.FieldDescriptor field, int start, int end, FieldMask2<Message> mask) {
+    if (start >= end) {
+      return whole(field, false, null);
+    }
+    FieldMask2<Message>[] masks = newMasks(1);
+    masks[0] = mask;
+    return ofRanges(field, new int[] {start}, new int[] {end}, masks, DROP);
+  }
+
+  Descriptors.FieldDescriptor field() {
+    return field;
+  }
+
+  boolean isMap() {
+    return keys != null;
+  }
+
+  // No keys or ranges, so the field is kept as a whole or not at all
+  boolean isWhole() {
+    return masks.length == 0;
+  }
+
+  boolean keepsRest() {
+    return keepsRest;
+  }
+
+  FieldMask2<Message> rest() {
+    return rest;
+  }
+
+  int size() {
+    return masks.length;
+  }
+
+  Object key(int item) {
+    return keys[item];
+  }
+
+  int start(int item) {
+    return starts[item];
+  }
+
+  int end(int item) {
+    return ends[item];
+  }
+
+  FieldMask2<Message> mask(int item) {
+    return masks[item];
+  }
+
+  Selector union(Selector other) {
+    return combine(other, Selector::unionMasks);
+  }
+
+  Selector intersect(Selector other) {
+    return combine(other, Selector::intersectMasks);
+  }
+
+  // Adds the selected elements of the field, scrubbed by their masks
+  void merge(Message message, Message.Builder builder, BuilderPool builders) {
+    int count = message.getRepeatedFieldCount(field);
+    if (keys == null && !keepsRest) {
+      // Only the selected ranges are visited
+      for (int item = 0; item < starts.length && starts[item] < count; item++) {
+        int end = Math.min(ends[item], count);
+        for (int i = starts[item]; i < end; i++) {
+          add(builder, masks[item], message.getRepeatedField(field, i), builders);
+        }
+      }
+      return;
+    }
+    for (int i = 0; i < count; i++) {
+      Object element = message.getRepeatedField(field, i);
+      int item = keys != null ? Arrays.binarySearch(keys, ((Message) element).getField(keyField)) : rangeOf(i);
+      if (item >= 0) {
+        add(builder, masks[item], element, builders);
+      } else if (keepsRest) {
+        add(builder, rest, element, builders);
+      }
+    }
+  }
+
+  private void add(Message.Builder builder, FieldMask2<Message> mask, Object element, BuilderPool builders) {
+    builder.addRepeatedField(field, mask == null ? element : mask.scrubNested((Message) element, builders));
+  }
+
+  private int rangeOf(int index) {
+    int item = Arrays.binarySearch(starts, index);
+    if (item < 0) {
+      item = -item - 2;
+    }
+    return item >= 0 && index < ends[item] ? item : -1;
+  }
+
+  // The path suffix of a key or range, as the Builder parses it
+  String path(int item) {
+    if (keys != null) {
+      return "[" + formatKey(keyField, keys[item]) + "]";
+    }
+    if (ends[item] == Integer.MAX_VALUE) {
+      return "[" + starts[item] + ":]";
+    }
+    if (ends[item] == starts[item] + 1) {
+      return "[" + starts[item] + "]";
+    }
+    return "[" + starts[item] + ":" + ends[item] + "]";
+  }
+
+  // The mask that paths below path(item) describe, or null when the elements are kept whole
+  FieldMask2<Message> pathMask(int item) {
+    FieldMask2<Message> mask = masks[item];
+    if (mask == null || mask.isKeepAll()) {
+      return null;
+    }
+    if (keys == null) {
+      return mask;
+    }
+    Descriptors.FieldDescriptor valueField = field.getMessageType().findFieldByNumber(2);
+    if (valueField.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+      return null;
+    }
+    FieldMask2<Message> valueMask = mask.keeps(valueField) ? mask.child(valueField) : FieldMask2.keepNone(valueField.getMessageType());
+    return valueMask.isKeepAll() ? null : valueMask;
+  }
+
+  private Selector combine(Selector other, BinaryOperator<Object> operator) {
+    Object restMask = operator.apply(restOrDrop(), other.restOrDrop());
+    if (keys != null) {
+      Map<Object, Object> items = new TreeMap<>();
+      TreeSet<Object> allKeys = new TreeSet<>(Arrays.asList(keys));
+      allKeys.addAll(Arrays.asList(other.keys));
+      for (Object key : allKeys) {
+        items.put(key, operator.apply(maskOfKey(key), other.maskOfKey(key)));
+      }
+      return ofKeys(field, restMask, items);
+    }
+
+    TreeSet<Integer> bounds = new TreeSet<>();
+    for (Selector selector : Arrays.asList(this, other)) {
+      for (int i = 0; i < selector.starts.length; i++) {
+        bounds.add(selector.starts[i]);
+        bounds.add(selector.ends[i]);
+      }
+    }
+    List<int[]> ranges = new ArrayList<>();
+    List<FieldMask2<Message>> rangeMasks = new ArrayList<>();
+    Integer start = bounds.isEmpty() ? null : bounds.first();
+    while (start != null && start != Integer.MAX_VALUE) {
+      Integer end = bounds.higher(start);
+      if (end == null) {
+        break;
+      }
+      // Neither operator drops an element that both sides keep, so a kept rest has no dropped ranges
+      Object mask = operator.apply(maskOfIndex(start), other.maskOfIndex(start));
+      if (!Objects.equals(mask, restMask)) {
+        int last = ranges.size() - 1;
+        if (last >= 0 && ranges.get(last)[1] == start && Objects.equals(rangeMasks.get(last), mask)) {
+          ranges.get(last)[1] = end;
+        } else {
+          ranges.add(new int[] {start, end});
+          rangeMasks.add((FieldMask2<Message>) mask);
+        }
+      }
+      start = end;
+    }
+    int[] starts = new int[ranges.size()];
+    int[] ends = new int[ranges.size()];
+    for (int i = 0; i < starts.length; i++) {
+      starts[i] = ranges.get(i)[0];
+      ends[i] = ranges.get(i)[1];
+    }
+    return ofRanges(field, starts, ends, rangeMasks.toArray(newMasks(0)), restMask);
+  }
+
+  // A range over every index is the whole field
+  private static Selector ofRanges(Descriptors.FieldDescriptor field, int[] starts, int[] ends, FieldMask2<Message>[] masks, Object restMask) {
+    if (restMask == DROP && starts.length == 1 && starts[0] == 0 && ends[0] == Integer.MAX_VALUE) {
+      return whole(field, true, masks[0]);
+    }
+    return new Selector(field, null, starts, ends, masks, restMask != DROP, restMask == DROP ? null : (FieldMask2<Message>) restMask);
+  }
+
+  // Drops keys that the rest covers, and keeps the key of every selected entry.
+  // A key is only dropped when the rest is, as neither operator drops an
+  // element that both sides keep.
+  private static Selector ofKeys(Descriptors.FieldDescriptor field, Object restMask, Map<Object, Object> items) {
+    List<Object> keys = new ArrayList<>();
+    List<FieldMask2<Message>> masks = new ArrayList<>();
+    for (Map.Entry<Object, Object> item : items.entrySet()) {
+      Object mask = item.getValue();
+      if (mask != DROP) {
+        mask = withKey(field, (FieldMask2<Message>) mask);
+      }
+      if (!Objects.equals(mask, restMask)) {
+        keys.add(item.getKey());
+        masks.add((FieldMask2<Message>) mask);
+      }
+    }
+    return new Selector(field, keys.toArray(), null, null, masks.toArray(newMasks(0)), restMask != DROP, restMask == DROP ? null : (FieldMask2<Message>) restMask);
+  }
+
+  private static FieldMask2<Message> withKey(Descriptors.FieldDescriptor field, FieldMask2<Message> mask) {
+    Descriptors.Descriptor entry = field.getMessageType();
+    Descriptors.FieldDescriptor keyField = entry.findFieldByNumber(1);
+    if (mask.keeps(keyField)) {
+      return mask;
+    }
+    long[] fieldBits = FieldMask2.newFieldBits(entry);
+    FieldMask2.set(fieldBits, keyField.getIndex());
+    return mask.union(FieldMask2.of(entry, fieldBits, FieldMask2.newChildren(entry)));
+  }
+
+  private Object restOrDrop() {
+    return keepsRest ? rest : DROP;
+  }
+
+  private Object maskOfKey(Object key) {
+    int item = Arrays.binarySearch(keys, key);
+    return item >= 0 ? masks[item] : restOrDrop();
+  }
+
+  private Object maskOfIndex(int index) {
+    int item = rangeOf(index);
+    return item >= 0 ? masks[item] : restOrDrop();
+  }
+
+  private static Object unionMasks(Object a, Object b) {
+    if (a == DROP) {
+      return b;
+    }
+    if (b == DROP || a == null) {
+      return a;
+    }
+    return b == null ? null : ((FieldMask2<Message>) a).union((FieldMask2<Message>) b);
+  }
+
+  private static Object intersectMasks(Object a, Object b) {
+    if (a == DROP || b == DROP) {
+      return DROP;
+    }
+    if (a == null) {
+      return b;
+    }
+    return b == null ? a : ((FieldMask2<Message>) a).intersect((FieldMask2<Message>) b);
+  }
+
+  // Null for a literal that isn't a key of the field's type
+  static Object parseKey(Descriptors.FieldDescriptor keyField, String literal) {
+    try {
+      switch (keyField.getType()) {
+        case STRING:
+          return unquote(literal);
+        case BOOL:
+          return literal.equals("true") ? Boolean.TRUE : literal.equals("false") ? Boolean.FALSE : null;
+        case UINT32:
+        case FIXED32:
+          return Integer.parseUnsignedInt(literal);
+        case UINT64:
+        case FIXED64:
+          return Long.parseUnsignedLong(literal);
+        case INT64:
+        case SINT64:
+        case SFIXED64:
+          return Long.parseLong(literal);
+        default:
+          return Integer.parseInt(literal);
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  static String formatKey(Descriptors.FieldDescriptor keyField, Object key) {
+    switch (keyField.getType()) {
+      case STRING:
+        return quote((String) key);
+      case UINT32:
+      case FIXED32:
+        return Integer.toUnsignedString((Integer) key);
+      case UINT64:
+      case FIXED64:
+        return Long.toUnsignedString((Long) key);
+      default:
+        return key.toString();
+    }
+  }
+
+  private static String quote(String key) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    return sb.append('"').toString();
+  }
+
+  private static String unquote(String literal) {
+    if (literal.length() < 2 || literal.charAt(0) != '"' || literal.charAt(literal.length() - 1) != '"') {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 1; i < literal.length() - 1; i++) {
+      char c = literal.charAt(i);
+      if (c == '\\') {
+        if (++i == literal.length() - 1) {
+          return null;
+        }
+        c = literal.charAt(i);
+      } else if (c == '"') {
+        return null;
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private static FieldMask2<Message>[] newMasks(int size) {
+    return (FieldMask2<Message>[]) new FieldMask2[size];
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    Selector that = (Selector) o;
+    return hashCode == that.hashCode &&
+            field == that.field &&
+            keepsRest == that.keepsRest &&
+            Objects.equals(rest, that.rest) &&
+            Arrays.equals(keys, that.keys) &&
+            Arrays.equals(starts, that.starts) &&
+            Arrays.equals(ends, that.ends) &&
+            Arrays.equals(masks, that.masks);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+}
@@ -0,0 +1,232 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+
+// FieldMask2.fromMessage for serialized messages. Tags are read in one pass
+// with the parser's rules for what ends up set: the last value of a singular
+// field wins, a oneof keeps its last member, and occurrences of a singular
+// message field are merged. Only message fields are looked into, and only
+// through the payload slices of the input.
+final class SerializedInference {
+
+  private static final byte ABSENT = 0;
+  // Set to the default value, which still makes the message non-default
+  private static final byte DEFAULT = 1;
+  private static final byte SET = 2;
+
+  private SerializedInference() {
+  }
+
+  static FieldMask2<Message> infer(Descriptors.Descriptor descriptor, ByteString message) throws InvalidProtocolBufferException {
+    try {
+      return inferFields(descriptor, message);
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e);
+    }
+  }
+
+  private static FieldMask2<Message> inferFields(Descriptors.Descriptor descriptor, ByteString message) throws IOException {
+    if (message.isEmpty()) {
+      return FieldMask2.keepAll(descriptor);
+    }
+    FieldNumbers fields = FieldNumbers.of(descriptor);
+    int fieldCount = fields.size();
+    byte[] states = new byte[fieldCount];
+    ByteString[] payloads = new ByteString[fieldCount];
+    boolean unknown = false;
+    CodedInputStream input = message.newCodedInput();
+    input.enableAliasing(true);
+    while (true) {
+      int tag = input.readTag();
+      if (tag == 0) {
+        break;
+      }
+      int wireType = WireFormat.getTagWireType(tag);
+      Descriptors.FieldDescriptor field = fields.find(descriptor, WireFormat.getTagFieldNumber(tag));
+      if (field == null || !FieldMask2.isExpectedWireType(field, wireType)) {
+        input.skipField(tag);
+        unknown = true;
+        continue;
+      }
+      int index = field.getIndex();
+      byte state;
+      if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+        if (!field.isRepeated()) {
+          // Repeated occurrences of a singular message are merged, as concatenation does
+          ByteString payload = payload(input, message, tag);
+          payloads[index] = states[index] == SET ? payloads[index].concat(payload) : payload;
+        } else if (states[index] != SET) {
+          // Only the first element counts, like in fromMessage
+          payloads[index] = payload(input, message, tag);
+        } else {
+          input.skipField(tag);
+        }
+        state = SET;
+      } else if (field.isRepeated()) {
+        if (wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED && field.getLiteType().isPackable()) {
+          int length = input.readRawVarint32();
+          input.skipRawBytes(length);
+          state = length > 0 || states[index] == SET ? SET : ABSENT;
+        } else if (skipElement(field, input, tag)) {
+          state = SET;
+        } else {
+          unknown = true;
+          continue;
+        }
+      } else {
+        boolean isDefault;
+        if (isEmptyByDefault(field)) {
+          // Only the length matters, so the value isn't decoded
+          int length = input.readRawVarint32();
+          input.skipRawBytes(length);
+          isDefault = length == 0;
+        } else {
+          Object value = readValue(field, input);
+          if (value == null) {
+            unknown = true;
+            continue;
+          }
+          isDefault = value.equals(field.getDefaultValue());
+        }
+        state = !isDefault ? SET : hasPresence(field) ? DEFAULT : ABSENT;
+      }
+      if (state != ABSENT) {
+        clearOtherOneofMembers(field, states, payloads);
+      }
+      states[index] = state;
+    }
+
+    long[] fieldBits = null;
+    FieldMask2<Message>[] children = null;
+    boolean present = unknown;
+    for (Descriptors.FieldDescriptor field : descriptor.getFields()) {
+      int index = field.getIndex();
+      if (states[index] == ABSENT) {
+        continue;
+      }
+      present = true;
+      if (states[index] == SET) {
+        if (fieldBits == null) {
+          fieldBits = FieldMask2.newFieldBits(descriptor);
+          children = FieldMask2.newChildren(descriptor);
+        }
+        FieldMask2.set(fieldBits, index);
+        if (payloads[index] != null) {
+          children[index] = inferFields(field.getMessageType(), payloads[index]);
+        }
+      }
+    }
+    if (!present) {
+      return FieldMask2.keepAll(descriptor);
+    }
+    return fieldBits == null ? FieldMask2.keepNone(descriptor) : FieldMask2.of(descriptor, fieldBits, children);
+  }
+
+  // The body of a length-delimited message or of a group, without its end tag
+  private static ByteString payload(CodedInputStream input, ByteString message, int tag) throws IOException {
+    if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+      return input.readBytes();
+    }
+    int start = input.getTotalBytesRead();
+    input.skipField(tag);
+    int endTagSize = CodedOutputStream.computeUInt32SizeNoTag(WireFormat.getTagFieldNumber(tag) << 3 | WireFormat.WIRETYPE_END_GROUP);
+    return message.substring(start, input.getTotalBytesRead() - endTagSize);
+  }
+
+  // False for a value that goes to the unknown fields, as closed enums do with values they don't know
+  private static boolean skipElement(Descriptors.FieldDescriptor field, CodedInputStream input, int tag) throws IOException {
+    if (field.getType() != Descriptors.FieldDescriptor.Type.ENUM) {
+      input.skipField(tag);
+      return true;
+    }
+    return readValue(field, input) != null;
+  }
+
+  // Null for an enum value that a closed enum doesn't know
+  private static Object readValue(Descriptors.FieldDescriptor field, CodedInputStream input) throws IOException {
+    switch (field.getType()) {
+      case DOUBLE:
+        return input.readDouble();
+      case FLOAT:
+        return input.readFloat();
+      case INT64:
+        return input.readInt64();
+      case UINT64:
+        return input.readUInt64();
+      case INT32:
+        return input.readInt32();
+      case FIXED64:
+        return input.readFixed64();
+      case FIXED32:
+        return input.readFixed32();
+      case BOOL:
+        return input.readBool();
+      case STRING:
+        return input.readString();
+      case BYTES:
+        return input.readBytes();
+      case UINT32:
+        return input.readUInt32();
+      case SFIXED32:
+        return input.readSFixed32();
+      case SFIXED64:
+        return input.readSFixed64();
+      case SINT32:
+        return input.readSInt32();
+      case SINT64:
+        return input.readSInt64();
+      case ENUM: {
+        int number = input.readEnum();
+        Descriptors.EnumValueDescriptor value = field.getEnumType().findValueByNumber(number);
+        if (value != null) {
+          return value;
+        }
+        return isProto3(field) ? field.getEnumType().findValueByNumberCreatingIfUnknown(number) : null;
+      }
+      default:
+        throw new IllegalStateException("Unexpected type: " + field.getType());
+    }
+  }
+
+  private static boolean isEmptyByDefault(Descriptors.FieldDescriptor field) {
+    switch (field.getType()) {
+      case STRING:
+        return ((String) field.getDefaultValue()).isEmpty();
+      case BYTES:
+        return ((ByteString) field.getDefaultValue()).isEmpty();
+      default:
+        return false;
+    }
+  }
+
+  private static boolean hasPresence(Descriptors.FieldDescriptor field) {
+    return !isProto3(field) || field.getContainingOneof() != null;
+  }
+
+  private static boolean isProto3(Descriptors.FieldDescriptor field) {
+    return field.getFile().getSyntax() == Descriptors.FileDescriptor.Syntax.PROTO3;
+  }
+
+  private static void clearOtherOneofMembers(Descriptors.FieldDescriptor field, byte[] states, ByteString[] payloads) {
+    Descriptors.OneofDescriptor oneof = field.getContainingOneof();
+    if (oneof == null) {
+      return;
+    }
+    for (Descriptors.FieldDescriptor member : oneof.getFields()) {
+      if (member != field) {
+        states[member.getIndex()] = ABSENT;
+        payloads[member.getIndex()] = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package com.spotify.fieldmasks2;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+// A map key that holds its referent weakly and finds it by identity. Keys of
+// the same live instance are equal; a cleared key only to itself, so the key
+// polled from its queue still removes its own entry.
+class WeakIdentityKey<T> extends WeakReference<T> {
+  private final int hashCode;
+
+  // Lookups pass a null queue, only keys that go into the map need one
+  WeakIdentityKey(T referent, ReferenceQueue<? super T> queue) {
+    this(referent, queue, System.identityHashCode(referent));
+  }
+
+  WeakIdentityKey(T referent, ReferenceQueue<? super T> queue, int hashCode) {
+    super(referent, queue);
+    this.hashCode = hashCode;
+  }
+
+  // Called with a live referent only
+  boolean matches(T referent, Object other) {
+    return referent == other;
+  }
+
+  @Override
+  public final boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof WeakIdentityKey)) return false;
+    WeakIdentityKey<?> that = (WeakIdentityKey<?>) o;
+    T referent = get();
+    return hashCode == that.hashCode && referent != null && matches(referent, that.get());
+  }
+
+  @Override
+  public final int hashCode() {
+    return hashCode;
+  }
+}
@@ -0,0 +1,66 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.Message;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+
+// Java 11+ only, shipped in META-INF/versions/11 of the multi-release jar.
+// Scrubs every item on the upstream thread and publishes it through a bounded
+// SubmissionPublisher buffer. One item is requested from upstream at a time
+// and submit blocks while the buffer is full, so slow subscribers hold back
+// the upstream.
+public final class ScrubProcessor<T extends Message> extends SubmissionPublisher<T> implements Flow.Processor<T, T> {
+
+  private final FieldMask2<T> mask;
+  private Flow.Subscription subscription;
+
+  public ScrubProcessor(FieldMask2<T> mask) {
+    this(mask, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+  }
+
+  public ScrubProcessor(FieldMask2<T> mask, Executor executor, int maxBufferCapacity) {
+    super(executor, maxBufferCapacity);
+    this.mask = mask;
+  }
+
+  public FieldMask2<T> getMask() {
+    return mask;
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    if (this.subscription != null) {
+      subscription.cancel();
+      return;
+    }
+    this.subscription = subscription;
+    subscription.request(1);
+  }
+
+  @Override
+  public void onNext(T item) {
+    T scrubbed;
+    try {
+      scrubbed = mask.scrub(item);
+    } catch (RuntimeException e) {
+      subscription.cancel();
+      closeExceptionally(e);
+      return;
+    }
+    submit(scrubbed);
+    subscription.request(1);
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    closeExceptionally(throwable);
+  }
+
+  @Override
+  public void onComplete() {
+    close();
+  }
+}
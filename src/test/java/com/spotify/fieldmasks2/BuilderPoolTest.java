@@ -0,0 +1,47 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BuilderPoolTest {
+
+  @Test
+  public void testGeneratedAndDynamicBuildersAreKeptApart() {
+    DescriptorProtos.DescriptorProto generated = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    DynamicMessage dynamic = DynamicMessage.getDefaultInstance(DescriptorProtos.DescriptorProto.getDescriptor());
+    BuilderPool pool = new BuilderPool();
+
+    Message.Builder builder = BuilderPool.acquire(pool, generated);
+    BuilderPool.build(pool, builder);
+    assertTrue(BuilderPool.acquire(pool, dynamic) instanceof DynamicMessage.Builder);
+    assertSame(builder, BuilderPool.acquire(pool, generated));
+  }
+
+  @Test
+  public void testKeepsRecentTypesOnly() throws Exception {
+    BuilderPool pool = new BuilderPool();
+    DynamicMessage first = DynamicMessage.getDefaultInstance(runtimeType(0));
+    Message.Builder builder = BuilderPool.acquire(pool, first);
+    BuilderPool.build(pool, builder);
+    for (int i = 1; i <= 100; i++) {
+      DynamicMessage message = DynamicMessage.getDefaultInstance(runtimeType(i));
+      BuilderPool.build(pool, BuilderPool.acquire(pool, message));
+    }
+
+    assertNotSame(builder, BuilderPool.acquire(pool, first));
+  }
+
+  private static Descriptors.Descriptor runtimeType(int i) throws Descriptors.DescriptorValidationException {
+    return Descriptors.FileDescriptor.buildFrom(DescriptorProtos.FileDescriptorProto.newBuilder()
+            .setName("runtime" + i + ".proto")
+            .addMessageType(DescriptorProtos.DescriptorProto.newBuilder().setName("Runtime" + i))
+            .build(), new Descriptors.FileDescriptor[0]).getMessageTypes().get(0);
+  }
+}
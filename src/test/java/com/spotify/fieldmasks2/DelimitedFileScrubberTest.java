@@ -0,0 +1,142 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.DescriptorProtos;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+public class DelimitedFileScrubberTest {
+
+  private static final FieldMask2<DescriptorProtos.DescriptorProto> MASK = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,field.name,nested_type.name");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testScrubsEveryRecordInOrder() throws IOException {
+    List<DescriptorProtos.DescriptorProto> records = records(500);
+    Path input = write(records);
+    Path output = folder.newFile().toPath();
+
+    ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      // Small regions and batches put record boundaries everywhere
+      assertEquals(500, DelimitedFileScrubber.of(MASK).withExecutor(pool).withBatchSize(100).withRegionSize(64).scrub(input, output));
+      assertScrubbed(records, output);
+      assertEquals(500, DelimitedFileScrubber.of(MASK).withRegionSize(1000).scrub(input, output));
+      assertScrubbed(records, output);
+      assertEquals(500, DelimitedFileScrubber.of(MASK).scrub(input, output));
+      assertScrubbed(records, output);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testFromDescriptorSet() throws IOException {
+    DescriptorProtos.FileDescriptorSet files = DescriptorProtos.FileDescriptorSet.newBuilder()
+            .addFile(DescriptorProtos.getDescriptor().toProto())
+            .build();
+    List<DescriptorProtos.DescriptorProto> records = records(10);
+    Path input = write(records);
+    Path output = folder.newFile().toPath();
+
+    DelimitedFileScrubber.of(files, "google.protobuf.DescriptorProto", "name,field.name,nested_type.name").scrub(input, output);
+    assertScrubbed(records, output);
+  }
+
+  @Test
+  public void testSelectorsWithLongerScrubbedRecords() throws IOException {
+    FieldMask2<DescriptorProtos.FileDescriptorProto> mask = FieldMask2.create(DescriptorProtos.FileDescriptorProto.getDefaultInstance(), "public_dependency[0:100]");
+    Path input = folder.newFile().toPath();
+    try (OutputStream out = Files.newOutputStream(input)) {
+      for (int i = 0; i < 3; i++) {
+        byte[] record = FieldMask2Test.packedBytes(100);
+        CodedOutputStream output = CodedOutputStream.newInstance(out);
+        output.writeUInt32NoTag(record.length);
+        output.writeRawBytes(record);
+        output.flush();
+      }
+    }
+    Path output = folder.newFile().toPath();
+
+    assertEquals(3, DelimitedFileScrubber.of(mask).scrub(input, output));
+    try (InputStream in = Files.newInputStream(output)) {
+      for (int i = 0; i < 3; i++) {
+        assertEquals(FieldMask2Test.packedPublicDependencies(100), DescriptorProtos.FileDescriptorProto.parseDelimitedFrom(in));
+      }
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+    Path output = folder.newFile().toPath();
+    assertEquals(0, DelimitedFileScrubber.of(MASK).scrub(folder.newFile().toPath(), output));
+    assertEquals(0, Files.size(output));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedRecord() throws IOException {
+    Path input = write(records(3));
+    byte[] bytes = Files.readAllBytes(input);
+    Files.write(input, Arrays.copyOf(bytes, bytes.length - 1));
+    DelimitedFileScrubber.of(MASK).withRegionSize(64).scrub(input, folder.newFile().toPath());
+  }
+
+  private Path write(List<DescriptorProtos.DescriptorProto> records) throws IOException {
+    Path path = folder.newFile().toPath();
+    try (OutputStream out = Files.newOutputStream(path)) {
+      for (DescriptorProtos.DescriptorProto record : records) {
+        record.writeDelimitedTo(out);
+      }
+    }
+    return path;
+  }
+
+  private static void assertScrubbed(List<DescriptorProtos.DescriptorProto> records, Path output) throws IOException {
+    List<DescriptorProtos.DescriptorProto> scrubbed = new ArrayList<>();
+    try (InputStream in = Files.newInputStream(output)) {
+      DescriptorProtos.DescriptorProto record;
+      while ((record = DescriptorProtos.DescriptorProto.parseDelimitedFrom(in)) != null) {
+        scrubbed.add(record);
+      }
+    }
+    List<DescriptorProtos.DescriptorProto> expected = new ArrayList<>();
+    for (DescriptorProtos.DescriptorProto record : records) {
+      expected.add(MASK.scrub(record));
+    }
+    assertEquals(expected, scrubbed);
+  }
+
+  private static List<DescriptorProtos.DescriptorProto> records(int count) {
+    List<DescriptorProtos.DescriptorProto> records = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      DescriptorProtos.DescriptorProto.Builder record = DescriptorProtos.DescriptorProto.newBuilder()
+              .setName("message " + i)
+              .addNestedType(DescriptorProtos.DescriptorProto.newBuilder().setName("nested").addReservedName("dropped"));
+      // Some records are larger than a 64 byte region
+      for (int j = 0; j < i % 7; j++) {
+        record.addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("field " + j).setNumber(j).setJsonName("json"));
+      }
+      if (i % 5 == 0) {
+        record = DescriptorProtos.DescriptorProto.newBuilder();
+      }
+      records.add(record.build());
+    }
+    return records;
+  }
+}
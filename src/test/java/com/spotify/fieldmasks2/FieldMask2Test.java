@@ -1,13 +1,42 @@
 package com.spotify.fieldmasks2;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Field;
+import com.google.protobuf.GeneratedMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Message;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Type;
+import com.google.protobuf.UnknownFieldSet;
+import com.google.protobuf.Value;
+import com.google.protobuf.WireFormat;
 import com.google.protobuf.util.FieldMaskUtil;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class FieldMask2Test {
 
@@ -129,6 +158,23 @@ public class FieldMask2Test {
     FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name2");
   }
 
+  @Test
+  public void testPathsBelowCoveredPathsAreValidated() {
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    for (List<String> paths : Arrays.asList(
+            Arrays.asList("options", "options.bogus"),
+            Arrays.asList("options.bogus", "options"),
+            Arrays.asList("options", "options.deprecated.value"),
+            Arrays.asList("options", "options.uninterpreted_option[a]"),
+            Arrays.asList("field[0]", "field[0].bogus"))) {
+      try {
+        FieldMask2.create(template, paths);
+        throw new AssertionError("Expected an invalid path in " + paths);
+      } catch (FieldMaskException expected) {
+      }
+    }
+  }
+
   @Test(expected = PrimitiveFieldException.class)
   public void testNotASubMessage() {
     FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name.options");
@@ -178,4 +224,791 @@ public class FieldMask2Test {
     );
     assertEquals(actual, expected);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testScrubSerialized() throws IOException {
+    DescriptorProtos.DescriptorProto input = DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("the name")
+            .setOptions(DescriptorProtos.MessageOptions.newBuilder()
+                    .setDeprecated(true)
+                    .setMapEntry(false)
+                    .build())
+            .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                    .addReservedName("reserved 1")
+                    .setName("the name 1")
+                    .build())
+            .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                    .addReservedName("reserved 2")
+                    .setName("the name 2")
+                    .build())
+            .addField(DescriptorProtos.FieldDescriptorProto.newBuilder()
+                    .setName("field")
+                    .setNumber(1)
+                    .build())
+            .build();
+
+    FieldMask2<DescriptorProtos.DescriptorProto> mask = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,options.deprecated,enum_type.reserved_name,field");
+
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    mask.scrub(input.toByteString(), output);
+    output.flush();
+
+    assertEquals(mask.scrub(input), DescriptorProtos.DescriptorProto.parseFrom(bytes.toByteString()));
+  }
+
+  @Test
+  public void testUnsetFieldsStayUnset() {
+    DescriptorProtos.DescriptorProto input = DescriptorProtos.DescriptorProto.newBuilder()
+            .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                    .setName("the name")
+                    .build())
+            .build();
+
+    FieldMask2<DescriptorProtos.DescriptorProto> mask = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,options.deprecated,enum_type");
+    assertEquals(input, mask.scrub(input));
+  }
+
+  @Test
+  public void testBuilderCollapsesCoveredPaths() {
+    FieldMask2<DescriptorProtos.DescriptorProto> actual = FieldMask2.newBuilder(DescriptorProtos.DescriptorProto.getDefaultInstance())
+            .addPaths("options.deprecated,name")
+            .addPaths("options")
+            .addPaths("options.map_entry")
+            .addFieldMask(FieldMaskUtil.fromString("enum_type.name,enum_type.value.number"))
+            .build();
+
+    FieldMask2<DescriptorProtos.DescriptorProto> expected = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,options,enum_type.name,enum_type.value.number");
+    assertEquals(expected, actual);
+    assertEquals(expected.union(FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "options.deprecated")), actual);
+  }
+
+  @Test
+  public void testScrubAll() {
+    DescriptorProtos.DescriptorProto input = DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("the name")
+            .setOptions(DescriptorProtos.MessageOptions.newBuilder()
+                    .setDeprecated(true)
+                    .setMapEntry(false)
+                    .build())
+            .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                    .addReservedName("reserved 1")
+                    .setName("the name 1")
+                    .build())
+            .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                    .addReservedName("reserved 2")
+                    .setName("the name 2")
+                    .build())
+            .build();
+
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    List<FieldMask2<DescriptorProtos.DescriptorProto>> masks = Arrays.asList(
+            FieldMask2.create(template, "name,options.deprecated"),
+            FieldMask2.create(template, "enum_type.name,options"),
+            FieldMask2.create(template, "options.deprecated,name"),
+            FieldMask2.create(template, "enum_type"),
+            FieldMask2.create(template, ""),
+            FieldMask2.create(template, "enum_type.reserved_name,options.map_entry"));
+
+    List<DescriptorProtos.DescriptorProto> actual = FieldMask2.scrubAll(input, masks);
+
+    assertEquals(masks.size(), actual.size());
+    for (int i = 0; i < masks.size(); i++) {
+      assertEquals(masks.get(i).scrub(input), actual.get(i));
+    }
+    assertSame(actual.get(0), actual.get(2));
+  }
+
+  @Test
+  public void testScrubAllKeepsUnchangedInstances() {
+    DescriptorProtos.DescriptorProto input = DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("the name")
+            .setOptions(DescriptorProtos.MessageOptions.newBuilder().setDeprecated(true))
+            .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder().setName("the name 1"))
+            .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder().setName("the name 2").addReservedName("reserved"))
+            .build();
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    List<FieldMask2<DescriptorProtos.DescriptorProto>> masks = Arrays.asList(
+            FieldMask2.create(template, "name,options.deprecated,enum_type.name,enum_type.reserved_name"),
+            FieldMask2.create(template, "name,options.deprecated,enum_type.name"),
+            FieldMask2.create(template, "field,nested_type"));
+
+    List<DescriptorProtos.DescriptorProto> actual = FieldMask2.scrubAll(input, masks);
+
+    assertSame(input, actual.get(0));
+    assertSame(input, masks.get(0).scrub(input));
+    DescriptorProtos.DescriptorProto changed = actual.get(1);
+    assertEquals(masks.get(1).scrub(input), changed);
+    assertSame(input.getOptions(), changed.getOptions());
+    assertSame(input.getEnumType(0), changed.getEnumType(0));
+    assertSame(template, actual.get(2));
+    assertSame(masks.get(2).scrub(input), actual.get(2));
+  }
+
+  @Test
+  public void testParseFrom() throws IOException {
+    DescriptorProtos.FileDescriptorProto input = DescriptorProtos.getDescriptor().toProto();
+    DescriptorProtos.FileDescriptorProto template = DescriptorProtos.FileDescriptorProto.getDefaultInstance();
+
+    FieldMask2<DescriptorProtos.FileDescriptorProto> mask = FieldMask2.create(template, "name,message_type.name,message_type.field.name,message_type.options,enum_type");
+    DescriptorProtos.FileDescriptorProto expected = mask.scrub(input);
+
+    assertEquals(expected, mask.parseFrom(template, new ByteArrayInputStream(input.toByteArray())));
+    assertEquals(expected, mask.parseFrom(template, ByteBuffer.wrap(input.toByteArray())));
+    assertEquals(template, FieldMask2.create(template, "").parseFrom(template, new ByteArrayInputStream(input.toByteArray())));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseFromOtherType() throws IOException {
+    FieldMask2<Message> mask = FieldMask2.create((Message) DescriptorProtos.FileDescriptorProto.getDefaultInstance(), "name");
+    mask.parseFrom(DescriptorProtos.DescriptorProto.getDefaultInstance(), ByteBuffer.allocate(0));
+  }
+
+  @Test
+  public void testParseFromLongerScrubbedOutput() throws IOException {
+    DescriptorProtos.FileDescriptorProto template = DescriptorProtos.FileDescriptorProto.getDefaultInstance();
+    DescriptorProtos.FileDescriptorProto input = packedPublicDependencies(100);
+    FieldMask2<DescriptorProtos.FileDescriptorProto> mask = FieldMask2.create(template, "public_dependency[0:100]");
+
+    // The scrubbed field is written unpacked, which is longer than the packed input
+    assertEquals(input, mask.parseFrom(template, ByteBuffer.wrap(input.toByteArray())));
+    assertEquals(input, mask.parseFrom(template, ByteBuffer.wrap(packedBytes(100))));
+  }
+
+  // A proto2 repeated field that isn't declared packed, encoded packed as parsers accept
+  static byte[] packedBytes(int count) throws IOException {
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    output.writeTag(DescriptorProtos.FileDescriptorProto.PUBLIC_DEPENDENCY_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    output.writeUInt32NoTag(count);
+    for (int i = 0; i < count; i++) {
+      output.writeInt32NoTag(i);
+    }
+    output.flush();
+    return bytes.toByteString().toByteArray();
+  }
+
+  static DescriptorProtos.FileDescriptorProto packedPublicDependencies(int count) throws IOException {
+    return DescriptorProtos.FileDescriptorProto.parseFrom(packedBytes(count));
+  }
+
+  @Test
+  public void testFullyCoveredNodeIsKeepAll() {
+    DescriptorProtos.EnumDescriptorProto template = DescriptorProtos.EnumDescriptorProto.getDefaultInstance();
+    FieldMask2<DescriptorProtos.EnumDescriptorProto> expected = FieldMask2.create(template, "name,value");
+    FieldMask2<DescriptorProtos.EnumDescriptorProto> created = FieldMask2.create(template, "name,value.name,value.number,value.options");
+    FieldMask2<DescriptorProtos.EnumDescriptorProto> union = FieldMask2.create(template, "name,value.name")
+            .union(FieldMask2.create(template, "value.number,value.options"));
+    assertEquals(expected, created);
+    assertEquals(expected, union);
+  }
+
+  @Test
+  public void testScrubKeepsUnchangedInstances() {
+    DescriptorProtos.DescriptorProto input = DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("the name")
+            .setOptions(DescriptorProtos.MessageOptions.newBuilder()
+                    .setDeprecated(true)
+                    .build())
+            .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                    .addReservedName("reserved 1")
+                    .build())
+            .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                    .addReservedName("reserved 2")
+                    .setName("the name 2")
+                    .build())
+            .build();
+
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    assertSame(input, FieldMask2.create(template, "name,options.deprecated,enum_type.reserved_name,enum_type.name").scrub(input));
+
+    DescriptorProtos.DescriptorProto scrubbed = FieldMask2.create(template, "name,options.deprecated,enum_type.reserved_name").scrub(input);
+    assertNotSame(input, scrubbed);
+    assertSame(input.getOptions(), scrubbed.getOptions());
+    assertSame(input.getEnumType(0), scrubbed.getEnumType(0));
+    assertEquals(DescriptorProtos.EnumDescriptorProto.newBuilder().addReservedName("reserved 2").build(), scrubbed.getEnumType(1));
+  }
+
+  @Test
+  public void testScrubDropsExtensions() throws Exception {
+    Descriptors.FileDescriptor file = Descriptors.FileDescriptor.buildFrom(DescriptorProtos.FileDescriptorProto.newBuilder()
+            .setName("extensions.proto")
+            .addDependency(DescriptorProtos.getDescriptor().getName())
+            .addExtension(DescriptorProtos.FieldDescriptorProto.newBuilder()
+                    .setName("tag")
+                    .setNumber(50000)
+                    .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL)
+                    .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING)
+                    .setExtendee(".google.protobuf.MessageOptions"))
+            .build(), new Descriptors.FileDescriptor[] {DescriptorProtos.getDescriptor()});
+    GeneratedMessage.GeneratedExtension<DescriptorProtos.MessageOptions, String> tag =
+            GeneratedMessage.newFileScopedGeneratedExtension(String.class, null);
+    tag.internalInit(file.getExtensions().get(0));
+    FieldMask2<DescriptorProtos.MessageOptions> mask = FieldMask2.create(DescriptorProtos.MessageOptions.getDefaultInstance(), "deprecated");
+
+    DescriptorProtos.MessageOptions plain = DescriptorProtos.MessageOptions.newBuilder().setDeprecated(true).build();
+    assertSame(plain, mask.scrub(plain));
+    assertEquals(plain, mask.scrub(plain.toBuilder().setExtension(tag, "dropped").build()));
+
+    DynamicMessage dynamic = DynamicMessage.newBuilder(DescriptorProtos.MessageOptions.getDescriptor())
+            .setField(DescriptorProtos.MessageOptions.getDescriptor().findFieldByName("deprecated"), true)
+            .build();
+    FieldMask2<DynamicMessage> dynamicMask = FieldMask2.create(dynamic, "deprecated");
+    assertSame(dynamic, dynamicMask.scrub(dynamic));
+    assertEquals(dynamic, dynamicMask.scrub(dynamic.toBuilder().setField(file.getExtensions().get(0), "dropped").build()));
+  }
+
+  @Test
+  public void testKeepAllToFieldMask() {
+    DescriptorProtos.EnumValueDescriptorProto template = DescriptorProtos.EnumValueDescriptorProto.getDefaultInstance();
+    FieldMask2<DescriptorProtos.EnumValueDescriptorProto> mask = FieldMask2.create(template, "name,number,options");
+    assertEquals(mask, FieldMask2.fromFieldMask(template, mask.toFieldMask()));
+  }
+
+  @Test
+  public void testEqualMasksAreShared() {
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    FieldMask2<DescriptorProtos.DescriptorProto> first = FieldMask2.create(template, "name,options.deprecated");
+    FieldMask2<DescriptorProtos.DescriptorProto> second = FieldMask2.create(template, "options.deprecated")
+            .union(FieldMask2.create(template, "name"));
+
+    assertSame(first, second);
+    assertEquals(first.hashCode(), second.hashCode());
+  }
+
+  @Test
+  public void testEqualMasksAreSharedAcrossThreads() {
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    List<FieldMask2<DescriptorProtos.DescriptorProto>> masks = IntStream.range(0, 1000).parallel()
+            .mapToObj(i -> FieldMask2.create(template, "name,field.name,field.options.ctype,enum_type.value.number"))
+            .collect(Collectors.toList());
+    for (FieldMask2<DescriptorProtos.DescriptorProto> mask : masks) {
+      assertSame(masks.get(0), mask);
+    }
+  }
+
+  @Test
+  public void testIntersectionDropsFieldsOnlyInOneMask() {
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    FieldMask2<DescriptorProtos.DescriptorProto> first = FieldMask2.create(template, "name,field.name,options");
+    FieldMask2<DescriptorProtos.DescriptorProto> second = FieldMask2.create(template, "field,options.deprecated,enum_type");
+
+    assertEquals(FieldMask2.create(template, "field.name,options.deprecated"), first.intersect(second));
+    assertEquals(first.intersect(second), second.intersect(first));
+  }
+
+  @Test
+  public void testWriteScrubbedTo() throws IOException {
+    DescriptorProtos.DescriptorProto input = DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("the name")
+            .setOptions(DescriptorProtos.MessageOptions.newBuilder()
+                    .setDeprecated(true)
+                    .setMapEntry(false)
+                    .build())
+            .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                    .addReservedName("reserved 1")
+                    .setName("the name 1")
+                    .build())
+            .addField(DescriptorProtos.FieldDescriptorProto.newBuilder()
+                    .setName("field")
+                    .setNumber(1)
+                    .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED)
+                    .setOptions(DescriptorProtos.FieldOptions.newBuilder().setPacked(true))
+                    .build())
+            .build();
+    Type type = Type.newBuilder()
+            .setName("the type")
+            .addFields(Field.newBuilder().setName("field").setKindValue(1234).setNumber(1).build())
+            .addOneofs("the oneof")
+            .build();
+    Struct struct = Struct.newBuilder()
+            .putFields("a", Value.newBuilder().setListValue(ListValue.newBuilder()
+                    .addValues(Value.newBuilder().setNumberValue(1.5))
+                    .addValues(Value.newBuilder().setBoolValue(true))).build())
+            .putFields("b", Value.newBuilder().setStringValue("x").build())
+            .build();
+
+    assertScrubbedBytes(input, "name,options.deprecated,enum_type.reserved_name,field.options.packed,field.number");
+    assertScrubbedBytes(input, "enum_type,field");
+    assertScrubbedBytes(input, "options.uninterpreted_option");
+    assertScrubbedBytes(type, "name,fields.kind,fields.number");
+    assertScrubbedBytes(type, "fields.name,oneofs");
+    assertScrubbedBytes(struct, "fields.key,fields.value.list_value.values.number_value");
+    assertScrubbedBytes(struct, "fields.value.string_value");
+  }
+
+  private static <T extends Message> void assertScrubbedBytes(T message, String paths) throws IOException {
+    FieldMask2<T> mask = FieldMask2.create(message, paths);
+    byte[] expected = mask.scrub(message).toByteArray();
+    byte[] actual = new byte[mask.getScrubbedSerializedSize(message)];
+    CodedOutputStream output = CodedOutputStream.newInstance(actual);
+    mask.writeScrubbedTo(message, output);
+    output.checkNoSpaceLeft();
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void testScrubAllMessages() {
+    FieldMask2<DescriptorProtos.DescriptorProto> mask = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,field.number");
+    List<DescriptorProtos.DescriptorProto> messages = new ArrayList<>();
+    List<DescriptorProtos.DescriptorProto> expected = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      DescriptorProtos.DescriptorProto message = DescriptorProtos.DescriptorProto.newBuilder()
+              .setName("message " + i)
+              .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("field").setNumber(i))
+              .addReservedName("reserved")
+              .build();
+      messages.add(message);
+      expected.add(mask.scrub(message));
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      assertEquals(expected, mask.scrubAll(messages));
+      assertEquals(expected, mask.scrubAll(new LinkedList<>(messages), pool));
+      assertEquals(expected, mask.scrubAll(messages, ScrubExecutors.commonPool()));
+      if (ScrubExecutors.virtualThreadsAvailable()) {
+        assertEquals(expected, mask.scrubAll(messages, ScrubExecutors.virtualThreads()));
+      }
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(expected, mask.scrub(messages.stream()).collect(Collectors.toList()));
+    assertEquals(expected, mask.scrub(messages.parallelStream()).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testScrubWithBuilderPool() {
+    FieldMask2<DescriptorProtos.DescriptorProto> mask = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,field.name,nested_type.name,nested_type.nested_type.name,reserved_name");
+    BuilderPool pool = new BuilderPool();
+    List<DescriptorProtos.DescriptorProto> scrubbed = new ArrayList<>();
+    List<DescriptorProtos.DescriptorProto> expected = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      DescriptorProtos.DescriptorProto message = DescriptorProtos.DescriptorProto.newBuilder()
+              .setName("message " + i)
+              .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("field " + i).setNumber(i))
+              .addNestedType(DescriptorProtos.DescriptorProto.newBuilder()
+                      .setName("nested " + i)
+                      .addNestedType(DescriptorProtos.DescriptorProto.newBuilder().setName("inner " + i).addReservedName("dropped")))
+              .addReservedName("reserved " + i)
+              .addReservedName("kept")
+              .build();
+      expected.add(mask.scrub(message));
+      scrubbed.add(mask.scrub(message, pool));
+      scrubbed.add(mask.scrub(message, BuilderPool.threadLocal()));
+      expected.add(mask.scrub(message));
+    }
+    // Earlier results must not change when their builders are reused
+    assertEquals(expected, scrubbed);
+
+    Message dynamic = toDynamic(scrubbed.get(0));
+    assertEquals(toDynamic(mask.scrub(scrubbed.get(0))), ((FieldMask2<Message>) (FieldMask2<?>) mask).scrub(dynamic, pool));
+  }
+
+  @Test
+  public void testEmptySubResultIsDefaultInstance() {
+    DescriptorProtos.DescriptorProto input = DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("name")
+            .setOptions(DescriptorProtos.MessageOptions.newBuilder().setMapEntry(true))
+            .build();
+    FieldMask2<DescriptorProtos.DescriptorProto> mask = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,options.deprecated");
+
+    DescriptorProtos.DescriptorProto scrubbed = mask.scrub(input, new BuilderPool());
+    assertTrue(scrubbed.hasOptions());
+    assertSame(DescriptorProtos.MessageOptions.getDefaultInstance(), scrubbed.getOptions());
+    assertEquals(mask.scrub(input), scrubbed);
+  }
+
+  private static Message toDynamic(Message message) {
+    try {
+      return DynamicMessage.parseFrom(message.getDescriptorForType(), message.toByteString());
+    } catch (InvalidProtocolBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Test
+  public void testEqualsAndHashUnderMask() {
+    DescriptorProtos.DescriptorProto base = DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("name")
+            .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("a").setNumber(1))
+            .setOptions(DescriptorProtos.MessageOptions.newBuilder().setDeprecated(true))
+            .addReservedName("reserved")
+            .build();
+    List<DescriptorProtos.DescriptorProto> messages = Arrays.asList(
+            base,
+            base.toBuilder().setName("other").build(),
+            base.toBuilder().clearName().build(),
+            base.toBuilder().setField(0, base.getField(0).toBuilder().setNumber(2)).build(),
+            base.toBuilder().setField(0, base.getField(0).toBuilder().setJsonName("a")).build(),
+            base.toBuilder().addField(base.getField(0)).build(),
+            base.toBuilder().setOptions(DescriptorProtos.MessageOptions.getDefaultInstance()).build(),
+            base.toBuilder().clearOptions().build(),
+            base.toBuilder().addReservedName("more").build(),
+            base.toBuilder().setUnknownFields(UnknownFieldSet.newBuilder()
+                    .addField(1000, UnknownFieldSet.Field.newBuilder().addVarint(1).build())
+                    .build()).build());
+    List<FieldMask2<DescriptorProtos.DescriptorProto>> masks = Arrays.asList(
+            FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name"),
+            FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "field.number,options.map_entry"),
+            FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "field,options"),
+            FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance()),
+            FieldMask2.fromMessage(DescriptorProtos.DescriptorProto.getDefaultInstance()));
+    for (FieldMask2<DescriptorProtos.DescriptorProto> mask : masks) {
+      for (DescriptorProtos.DescriptorProto a : messages) {
+        for (DescriptorProtos.DescriptorProto b : messages) {
+          boolean expected = mask.scrub(a).equals(mask.scrub(b));
+          assertEquals(mask + "\n" + a + "\n" + b, expected, mask.equalsUnderMask(a, b));
+          assertEquals(expected, mask.diff(a, b).equals(FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance())));
+          if (expected) {
+            assertEquals(mask.hashUnderMask(a), mask.hashUnderMask(b));
+          }
+        }
+      }
+    }
+    FieldMask2<DescriptorProtos.DescriptorProto> name = masks.get(0);
+    assertNotEquals(name.hashUnderMask(messages.get(0)), name.hashUnderMask(messages.get(1)));
+  }
+
+  @Test
+  public void testMapsCompareAsMapsUnderMask() {
+    Struct struct = Struct.newBuilder()
+            .putFields("a", Value.newBuilder().setNumberValue(1).build())
+            .putFields("b", Value.newBuilder().setStringValue("b").build())
+            .build();
+    Struct reversed = Struct.newBuilder()
+            .putFields("b", Value.newBuilder().setStringValue("b").build())
+            .putFields("a", Value.newBuilder().setNumberValue(1).build())
+            .build();
+    FieldMask2<Struct> mask = FieldMask2.create(Struct.getDefaultInstance(), "fields.key,fields.value.number_value");
+    assertTrue(mask.equalsUnderMask(struct, reversed));
+    assertEquals(mask.hashUnderMask(struct), mask.hashUnderMask(reversed));
+    Struct changed = struct.toBuilder().putFields("b", Value.newBuilder().setNumberValue(2).build()).build();
+    assertEquals(mask.scrub(struct).equals(mask.scrub(changed)), mask.equalsUnderMask(struct, changed));
+  }
+
+  @Test
+  public void testDiff() {
+    DescriptorProtos.DescriptorProto before = DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("name")
+            .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("a").setNumber(1))
+            .setOptions(DescriptorProtos.MessageOptions.newBuilder().setDeprecated(true))
+            .build();
+    DescriptorProtos.DescriptorProto after = before.toBuilder()
+            .setName("renamed")
+            .setField(0, before.getField(0).toBuilder().setNumber(2))
+            .setOptions(DescriptorProtos.MessageOptions.newBuilder().setDeprecated(true).setMapEntry(true))
+            .addReservedName("reserved")
+            .build();
+    FieldMask2<DescriptorProtos.DescriptorProto> mask = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,field.number,options,enum_type");
+
+    FieldMask2<DescriptorProtos.DescriptorProto> diff = mask.diff(before, after);
+    assertEquals(FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,field.number,options.map_entry"), diff);
+    assertEquals(FieldMaskUtil.fromString("name,field.number,options.map_entry"), diff.toFieldMask());
+    assertEquals(FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance()), mask.diff(before, before.toBuilder().addReservedName("dropped").build()));
+  }
+
+  @Test
+  public void testFromSerialized() throws Exception {
+    DescriptorProtos.DescriptorProto descriptor = DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("name")
+            .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("a").setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL))
+            .addField(DescriptorProtos.FieldDescriptorProto.getDefaultInstance())
+            .setOptions(DescriptorProtos.MessageOptions.newBuilder().setDeprecated(false))
+            .addReservedRange(DescriptorProtos.DescriptorProto.ReservedRange.getDefaultInstance())
+            .build();
+    assertSameInference(DescriptorProtos.DescriptorProto.getDefaultInstance());
+    assertSameInference(descriptor);
+    assertSameInference(Struct.newBuilder()
+            .putFields("a", Value.newBuilder().setListValue(ListValue.newBuilder().addValues(Value.getDefaultInstance())).build())
+            .putFields("b", Value.newBuilder().setStringValue("").build())
+            .build());
+    assertSameInference(Type.newBuilder().setName("type").addOptions(com.google.protobuf.Option.getDefaultInstance()).build());
+
+    // Concatenation merges singular messages, keeps the last oneof member and the last scalar value
+    assertSameInference(DescriptorProtos.DescriptorProto.getDefaultInstance(), concat(
+            DescriptorProtos.DescriptorProto.newBuilder().setOptions(DescriptorProtos.MessageOptions.newBuilder().setDeprecated(true)).build(),
+            DescriptorProtos.DescriptorProto.newBuilder().setOptions(DescriptorProtos.MessageOptions.newBuilder().setMapEntry(true)).build()));
+    assertSameInference(Value.getDefaultInstance(), concat(
+            Value.newBuilder().setStructValue(Struct.getDefaultInstance()).build(),
+            Value.newBuilder().setNumberValue(0).build()));
+    assertSameInference(Type.getDefaultInstance(), concat(
+            Type.newBuilder().setName("type").build(),
+            Type.newBuilder().setName("").build()));
+    // An explicit default proto3 value leaves the parsed message empty
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    output.writeEnum(Type.SYNTAX_FIELD_NUMBER, 0);
+    output.writeUInt64(1000, 1);
+    output.flush();
+    assertSameInference(Type.getDefaultInstance(), bytes.toByteString().substring(0, 2));
+    assertSameInference(Type.getDefaultInstance(), bytes.toByteString());
+  }
+
+  @Test
+  public void testFromSerializedGroups() throws Exception {
+    DescriptorProtos.FileDescriptorProto file = DescriptorProtos.FileDescriptorProto.newBuilder()
+            .setName("groups.proto")
+            .addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+                    .setName("Outer")
+                    .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("inner").setNumber(1)
+                            .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_GROUP).setTypeName("Outer.Inner")
+                            .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL))
+                    .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("color").setNumber(2)
+                            .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_ENUM).setTypeName("Outer.Color")
+                            .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL))
+                    .addNestedType(DescriptorProtos.DescriptorProto.newBuilder()
+                            .setName("Inner")
+                            .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("value").setNumber(3)
+                                    .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT32)
+                                    .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL))
+                            .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("other").setNumber(4)
+                                    .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT32)
+                                    .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL)))
+                    .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                            .setName("Color")
+                            .addValue(DescriptorProtos.EnumValueDescriptorProto.newBuilder().setName("RED").setNumber(0))
+                            .addValue(DescriptorProtos.EnumValueDescriptorProto.newBuilder().setName("BLUE").setNumber(1))))
+            .build();
+    Descriptors.Descriptor outer = Descriptors.FileDescriptor.buildFrom(file, new Descriptors.FileDescriptor[0]).findMessageTypeByName("Outer");
+    DynamicMessage template = DynamicMessage.getDefaultInstance(outer);
+
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    output.writeTag(1, WireFormat.WIRETYPE_START_GROUP);
+    output.writeInt32(3, 7);
+    output.writeTag(1, WireFormat.WIRETYPE_END_GROUP);
+    output.writeTag(1, WireFormat.WIRETYPE_START_GROUP);
+    output.writeInt32(4, 0);
+    output.writeTag(1, WireFormat.WIRETYPE_END_GROUP);
+    // Not a Color, so the parser keeps it as an unknown field
+    output.writeEnum(2, 5);
+    output.flush();
+
+    ByteString serialized = bytes.toByteString();
+    assertEquals(FieldMask2.fromMessage(DynamicMessage.parseFrom(outer, serialized)), FieldMask2.fromSerialized(template, serialized));
+    Descriptors.FieldDescriptor inner = outer.findFieldByName("inner");
+    DynamicMessage expected = DynamicMessage.newBuilder(outer)
+            .setField(inner, DynamicMessage.newBuilder(inner.getMessageType()).setField(inner.getMessageType().findFieldByName("value"), 1).build())
+            .build();
+    assertEquals(FieldMask2.fromMessage(expected), FieldMask2.fromSerialized(template, serialized));
+  }
+
+  @Test
+  public void testBinaryRoundTrip() throws Exception {
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    List<FieldMask2<DescriptorProtos.DescriptorProto>> masks = Arrays.asList(
+            FieldMask2.create(template),
+            FieldMask2.create(template, "name"),
+            FieldMask2.create(template, "name,field.name,field.options.deprecated,nested_type.nested_type.name,options"),
+            FieldMask2.fromMessage(template),
+            FieldMask2.fromMessage(DescriptorProtos.DescriptorProto.newBuilder().setName("name").addReservedName("reserved").build()));
+    for (FieldMask2<DescriptorProtos.DescriptorProto> mask : masks) {
+      assertEquals(mask, FieldMask2.fromBinary(template, mask.toBinary()));
+      assertEquals(mask, FieldMask2.fromBinary(template, mask.toBinary().asReadOnlyByteBuffer()));
+    }
+    assertTrue(masks.get(2).toBinary().size() < masks.get(2).toFieldMask().toByteString().size());
+  }
+
+  @Test
+  public void testBinarySkipsUnknownFieldNumbers() throws Exception {
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    output.writeUInt32NoTag(2);
+    output.writeUInt32NoTag(3);
+    // name (1), source_context (5) and a removed field 1000 with a sub-mask that keeps its field 1
+    output.writeUInt32NoTag(1 << 1);
+    output.writeUInt32NoTag(4 << 1 | 1);
+    output.writeUInt32NoTag(1);
+    output.writeUInt32NoTag(995 << 1 | 1);
+    output.writeUInt32NoTag(2);
+    output.writeUInt32NoTag(1);
+    output.writeUInt32NoTag(1 << 1);
+    output.flush();
+    assertEquals(FieldMask2.create(Type.getDefaultInstance(), "name,source_context"),
+            FieldMask2.fromBinary(Type.getDefaultInstance(), bytes.toByteString()));
+  }
+
+  @Test(expected = InvalidProtocolBufferException.class)
+  public void testBinaryRejectsGarbage() throws Exception {
+    FieldMask2.fromBinary(Type.getDefaultInstance(), ByteString.copyFrom(new byte[] {2, 1}));
+  }
+
+  @Test(expected = InvalidProtocolBufferException.class)
+  public void testBinaryRejectsUnknownKindUnderRemovedField() throws Exception {
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    // A removed field 1000 whose sub-mask has kind 7
+    output.writeUInt32NoTag(2);
+    output.writeUInt32NoTag(1);
+    output.writeUInt32NoTag(1000 << 1 | 1);
+    output.writeUInt32NoTag(7);
+    output.flush();
+    FieldMask2.fromBinary(Type.getDefaultInstance(), bytes.toByteString());
+  }
+
+  private static final Struct STRUCT = Struct.newBuilder()
+          .putFields("a", Value.newBuilder().setStringValue("a").build())
+          .putFields("b", Value.newBuilder().setStructValue(Struct.newBuilder()
+                  .putFields("x", Value.newBuilder().setNumberValue(1).build())
+                  .putFields("y", Value.newBuilder().setNumberValue(2).build())).build())
+          .putFields("c.d,e", Value.newBuilder().setBoolValue(true).build())
+          .putFields("d", Value.newBuilder().setNumberValue(4).build())
+          .build();
+
+  private static final DescriptorProtos.DescriptorProto REPEATED = DescriptorProtos.DescriptorProto.newBuilder()
+          .setName("repeated")
+          .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("f0").setNumber(0))
+          .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("f1").setNumber(1))
+          .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("f2").setNumber(2))
+          .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("f3").setNumber(3))
+          .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("f4").setNumber(4))
+          .addAllReservedName(Arrays.asList("r0", "r1", "r2"))
+          .build();
+
+  @Test
+  public void testMapKeySelectors() {
+    FieldMask2<Struct> mask = FieldMask2.create(Struct.getDefaultInstance(), "fields[\"a\"],fields[\"c.d,e\"],fields[\"b\"].struct_value.fields[\"y\"],fields[\"missing\"]");
+    Struct expected = Struct.newBuilder()
+            .putFields("a", STRUCT.getFieldsOrThrow("a"))
+            .putFields("b", Value.newBuilder().setStructValue(Struct.newBuilder()
+                    .putFields("y", Value.newBuilder().setNumberValue(2).build())).build())
+            .putFields("c.d,e", STRUCT.getFieldsOrThrow("c.d,e"))
+            .build();
+    assertEquals(expected, mask.scrub(STRUCT));
+    assertEquals("fields[\"a\"]\n"
+            + "fields[\"b\"]:\n"
+            + "  struct_value:\n"
+            + "    fields[\"y\"]\n"
+            + "fields[\"c.d,e\"]\n"
+            + "fields[\"missing\"]\n", mask.toString());
+    assertEquals(mask, FieldMask2.fromFieldMask(Struct.getDefaultInstance(), mask.toFieldMask()));
+
+    // Keys with quotes and backslashes
+    Struct quoted = Struct.newBuilder().putFields("say \"hi\" \\", Value.getDefaultInstance()).putFields("other", Value.getDefaultInstance()).build();
+    FieldMask2<Struct> quotedMask = FieldMask2.create(Struct.getDefaultInstance(), "fields[\"say \\\"hi\\\" \\\\\"]");
+    assertEquals(Struct.newBuilder().putFields("say \"hi\" \\", Value.getDefaultInstance()).build(), quotedMask.scrub(quoted));
+    assertEquals(quotedMask, FieldMask2.fromFieldMask(Struct.getDefaultInstance(), quotedMask.toFieldMask()));
+  }
+
+  @Test
+  public void testIndexSelectors() {
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    FieldMask2<DescriptorProtos.DescriptorProto> mask = FieldMask2.create(template, "field[1:3].name,field[4],reserved_name[2],reserved_name[5:]");
+    DescriptorProtos.DescriptorProto expected = DescriptorProtos.DescriptorProto.newBuilder()
+            .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("f1"))
+            .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("f2"))
+            .addField(REPEATED.getField(4))
+            .addReservedName("r2")
+            .build();
+    assertEquals(expected, mask.scrub(REPEATED));
+    assertEquals("field[1:3]:\n"
+            + "  name\n"
+            + "field[4]\n"
+            + "reserved_name[2]\n"
+            + "reserved_name[5:]\n", mask.toString());
+    assertEquals(mask, FieldMask2.fromFieldMask(template, mask.toFieldMask()));
+
+    // Adjacent and overlapping ranges are the same mask however they are written
+    assertEquals(FieldMask2.create(template, "field[0:3]"), FieldMask2.create(template, "field[0],field[1:2],field[1:3]"));
+    assertEquals(FieldMask2.create(template, "field"), FieldMask2.create(template, "field[0:2],field[1:]"));
+    assertEquals(FieldMask2.create(template, "field"), FieldMask2.create(template, "field[0].name,field"));
+  }
+
+  @Test
+  public void testSelectorsCombine() {
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    // The whole field keeps number, and the first element also keeps its name
+    FieldMask2<DescriptorProtos.DescriptorProto> union = FieldMask2.create(template, "field.number").union(FieldMask2.create(template, "field[0].name"));
+    assertEquals(FieldMask2.create(template, "field.number,field[0].name"), union);
+    DescriptorProtos.DescriptorProto scrubbed = union.scrub(REPEATED);
+    assertEquals(REPEATED.getField(0), scrubbed.getField(0));
+    assertEquals(DescriptorProtos.FieldDescriptorProto.newBuilder().setNumber(3).build(), scrubbed.getField(3));
+    assertEquals(5, scrubbed.getFieldCount());
+
+    FieldMask2<DescriptorProtos.DescriptorProto> intersection = FieldMask2.create(template, "field[0:2]").intersect(FieldMask2.create(template, "field[1:4].name"));
+    assertEquals(FieldMask2.create(template, "field[1].name"), intersection);
+    assertEquals(FieldMask2.create(template, "field[1:3].name"), FieldMask2.create(template, "field.name").intersect(FieldMask2.create(template, "field[1:3]")));
+    assertEquals(FieldMask2.create(template), FieldMask2.create(template, "field[0]").intersect(FieldMask2.create(template, "field[1]")));
+
+    FieldMask2<Struct> keys = FieldMask2.create(Struct.getDefaultInstance(), "fields[\"a\"],fields[\"b\"].struct_value");
+    assertEquals(keys, FieldMask2.create(Struct.getDefaultInstance(), "fields[\"a\"]").union(FieldMask2.create(Struct.getDefaultInstance(), "fields[\"b\"].struct_value")));
+    assertEquals(FieldMask2.create(Struct.getDefaultInstance(), "fields[\"b\"].struct_value"),
+            keys.intersect(FieldMask2.create(Struct.getDefaultInstance(), "fields[\"b\"],fields[\"c\"]")));
+    assertEquals(keys.hashCode(), FieldMask2.create(Struct.getDefaultInstance(), "fields[\"b\"].struct_value,fields[\"a\"]").hashCode());
+    assertNotEquals(keys, FieldMask2.create(Struct.getDefaultInstance(), "fields[\"a\"],fields[\"b\"]"));
+  }
+
+  @Test
+  public void testSelectorsInOtherEngines() throws Exception {
+    FieldMask2<Struct> mask = FieldMask2.create(Struct.getDefaultInstance(), "fields[\"a\"],fields[\"b\"].struct_value.fields[\"y\"]");
+    Struct scrubbed = mask.scrub(STRUCT);
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    mask.scrub(STRUCT.toByteString(), output);
+    output.flush();
+    assertEquals(scrubbed, Struct.parseFrom(bytes.toByteString()));
+    assertEquals(scrubbed, mask.parseFrom(Struct.getDefaultInstance(), STRUCT.toByteString().asReadOnlyByteBuffer()));
+    assertEquals(scrubbed.getSerializedSize(), mask.getScrubbedSerializedSize(STRUCT));
+    assertEquals(scrubbed, GeneratedScrubber.of(mask).scrub(STRUCT));
+    assertEquals(scrubbed, ParallelScrubber.of(mask).scrub(STRUCT));
+    assertEquals(Arrays.asList(scrubbed, STRUCT), FieldMask2.scrubAll(STRUCT, Arrays.asList(mask, FieldMask2.fromMessage(Struct.getDefaultInstance()))));
+    assertEquals(FieldMask2.fromMessage(Struct.getDefaultInstance()).jsonPrinter().print(scrubbed), mask.jsonPrinter().print(STRUCT));
+    assertEquals(mask, FieldMask2.fromBinary(Struct.getDefaultInstance(), mask.toBinary()));
+
+    Struct changed = STRUCT.toBuilder().putFields("d", Value.getDefaultInstance()).build();
+    assertTrue(mask.equalsUnderMask(STRUCT, changed));
+    assertEquals(mask.hashUnderMask(STRUCT), mask.hashUnderMask(changed));
+    assertEquals(FieldMask2.create(Struct.getDefaultInstance()), mask.diff(STRUCT, changed));
+    Struct changedA = STRUCT.toBuilder().putFields("a", Value.getDefaultInstance()).build();
+    assertNotEquals(mask.hashUnderMask(STRUCT), mask.hashUnderMask(changedA));
+    assertEquals(FieldMask2.create(Struct.getDefaultInstance(), "fields[\"a\"],fields[\"b\"].struct_value.fields[\"y\"]"), mask.diff(STRUCT, changedA));
+
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    FieldMask2<DescriptorProtos.DescriptorProto> indexes = FieldMask2.create(template, "name,field[1:3].name,field.number,reserved_name[0]");
+    assertEquals(indexes, FieldMask2.fromBinary(template, indexes.toBinary()));
+    ByteString.Output indexBytes = ByteString.newOutput();
+    CodedOutputStream indexOutput = CodedOutputStream.newInstance(indexBytes);
+    indexes.writeScrubbedTo(REPEATED, indexOutput);
+    indexOutput.flush();
+    assertEquals(indexes.scrub(REPEATED).toByteString(), indexBytes.toByteString());
+  }
+
+  @Test
+  public void testInvalidSelectors() {
+    DescriptorProtos.DescriptorProto template = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    for (String path : Arrays.asList("name[0]", "field[a]", "field[2:1]", "field[-1]", "field[0", "field[0]name", "field[\"a\"]", "options[0]")) {
+      try {
+        FieldMask2.create(template, path);
+        throw new AssertionError("Expected an invalid selector: " + path);
+      } catch (InvalidSelectorException expected) {
+      }
+    }
+    for (String path : Arrays.asList("fields[a]", "fields[1]", "fields[\"a]", "fields[\"a\"\"]")) {
+      try {
+        FieldMask2.create(Struct.getDefaultInstance(), path);
+        throw new AssertionError("Expected an invalid selector: " + path);
+      } catch (InvalidSelectorException expected) {
+      }
+    }
+  }
+
+  @Test(expected = PrimitiveFieldException.class)
+  public void testNoPathBelowPrimitiveElements() {
+    FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "reserved_name[0].value");
+  }
+
+  private static <T extends Message> void assertSameInference(T message) throws IOException {
+    assertSameInference(message, message.toByteString());
+    assertEquals(FieldMask2.fromMessage(message), FieldMask2.fromSerialized(message, message.toByteArray()));
+  }
+
+  private static <T extends Message> void assertSameInference(T template, ByteString serialized) throws IOException {
+    Message parsed = template.getParserForType().parseFrom(serialized);
+    assertEquals(FieldMask2.fromMessage(parsed), FieldMask2.fromSerialized(template, serialized));
+  }
+
+  private static ByteString concat(Message first, Message second) {
+    return first.toByteString().concat(second.toByteString());
+  }
+}
@@ -0,0 +1,58 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Struct;
+import com.google.protobuf.util.FieldMaskUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class FieldMaskCacheTest {
+
+  private static final DescriptorProtos.DescriptorProto TEMPLATE = DescriptorProtos.DescriptorProto.getDefaultInstance();
+
+  @Test
+  public void testSameInstanceForNormalizedPaths() {
+    FieldMaskCache cache = new FieldMaskCache(10);
+    FieldMask2<DescriptorProtos.DescriptorProto> first = cache.create(TEMPLATE, "name,options.deprecated");
+    FieldMask2<DescriptorProtos.DescriptorProto> second = cache.create(TEMPLATE, "options.deprecated", "name", "name");
+    FieldMask2<DescriptorProtos.DescriptorProto> third = cache.fromFieldMask(TEMPLATE, FieldMaskUtil.fromString("options.deprecated,name"));
+
+    assertSame(first, second);
+    assertSame(first, third);
+    assertEquals(FieldMask2.create(TEMPLATE, "name,options.deprecated"), first);
+    assertEquals(1, cache.size());
+    assertEquals(2, cache.stats().hitCount());
+    assertEquals(1, cache.stats().missCount());
+  }
+
+  @Test
+  public void testEvictsOldestEntries() {
+    FieldMaskCache cache = new FieldMaskCache(2);
+    cache.create(TEMPLATE, "name");
+    cache.create(TEMPLATE, "options");
+    cache.create(TEMPLATE, "field");
+
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.stats().evictionCount());
+    cache.create(TEMPLATE, "name");
+    assertEquals(4, cache.stats().missCount());
+  }
+
+  @Test
+  public void testCommaInQuotedMapKey() {
+    FieldMaskCache cache = new FieldMaskCache(10);
+    Struct template = Struct.getDefaultInstance();
+    FieldMask2<Struct> mask = cache.create(template, "fields[\"a,b\"],fields[\"c\"]");
+
+    assertEquals(FieldMask2.create(template, "fields[\"a,b\"]", "fields[\"c\"]"), mask);
+    assertSame(mask, cache.create(template, "fields[\"c\"]", "fields[\"a,b\"]"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test(expected = MissingFieldException.class)
+  public void testInvalidPathIsNotCached() {
+    new FieldMaskCache(2).create(TEMPLATE, "name2");
+  }
+}
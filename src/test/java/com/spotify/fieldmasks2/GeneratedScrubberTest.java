@@ -0,0 +1,143 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Field;
+import com.google.protobuf.SourceContext;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Syntax;
+import com.google.protobuf.Type;
+import com.google.protobuf.Value;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class GeneratedScrubberTest {
+
+  private static final DescriptorProtos.DescriptorProto DESCRIPTOR_PROTO = DescriptorProtos.DescriptorProto.newBuilder()
+          .setName("the name")
+          .setOptions(DescriptorProtos.MessageOptions.newBuilder()
+                  .setDeprecated(true)
+                  .setMapEntry(false)
+                  .build())
+          .addField(DescriptorProtos.FieldDescriptorProto.newBuilder()
+                  .setName("field")
+                  .setNumber(1)
+                  .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED)
+                  .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING)
+                  .build())
+          .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                  .addReservedName("reserved 1")
+                  .setName("the name 1")
+                  .build())
+          .addReservedName("reserved")
+          .build();
+
+  private static final Type TYPE = Type.newBuilder()
+          .setName("the type")
+          .addFields(Field.newBuilder()
+                  .setName("field")
+                  .setKind(Field.Kind.TYPE_STRING)
+                  .setNumber(1)
+                  .setPacked(true)
+                  .build())
+          .addFields(Field.newBuilder()
+                  .setName("other")
+                  .setKindValue(1234)
+                  .setNumber(2)
+                  .build())
+          .addOneofs("the oneof")
+          .setSourceContext(SourceContext.newBuilder().setFileName("file.proto").build())
+          .setSyntax(Syntax.SYNTAX_PROTO3)
+          .build();
+
+  @Test
+  public void testProto2() {
+    assertSameAsReflection(DESCRIPTOR_PROTO, "name,options.deprecated,field.number,field.label,field.type,enum_type,reserved_name");
+    assertSameAsReflection(DESCRIPTOR_PROTO, "options,field.name,enum_type.reserved_name");
+  }
+
+  @Test
+  public void testProto3() {
+    assertSameAsReflection(TYPE, "name,fields.kind,fields.number,fields.packed,oneofs,syntax");
+    assertSameAsReflection(TYPE, "source_context,fields");
+    assertSameAsReflection(TYPE, "source_context.file_name,fields.name");
+  }
+
+  @Test
+  public void testMapField() {
+    Struct struct = Struct.newBuilder()
+            .putFields("a", Value.newBuilder().setStringValue("x").build())
+            .putFields("b", Value.newBuilder().setNumberValue(1).build())
+            .build();
+    assertSameAsReflection(struct, "fields");
+    assertSameAsReflection(struct, "fields.value.string_value");
+  }
+
+  @Test
+  public void testDynamicMessageFallsBackToReflection() {
+    DynamicMessage message = DynamicMessage.newBuilder(DESCRIPTOR_PROTO).build();
+    FieldMask2<DynamicMessage> mask = FieldMask2.create(DynamicMessage.getDefaultInstance(DescriptorProtos.DescriptorProto.getDescriptor()), "name,options.deprecated");
+    assertEquals(mask.scrub(message), GeneratedScrubber.of(mask).scrub(message));
+  }
+
+  @Test
+  public void testUnchangedMessageIsReturnedAsIs() {
+    GeneratedScrubber<DescriptorProtos.DescriptorProto> scrubber = GeneratedScrubber.of(FieldMask2.create(DESCRIPTOR_PROTO, "name,options,field,enum_type,reserved_name"));
+    assertSame(DESCRIPTOR_PROTO, scrubber.scrub(DESCRIPTOR_PROTO));
+    assertSame(DESCRIPTOR_PROTO, scrubber.scrub(DESCRIPTOR_PROTO, new BuilderPool()));
+
+    // Only a nested message changes, the other subtrees are shared
+    DescriptorProtos.DescriptorProto scrubbed = GeneratedScrubber.of(FieldMask2.create(DESCRIPTOR_PROTO, "name,options.deprecated,field,enum_type,reserved_name")).scrub(DESCRIPTOR_PROTO);
+    assertNotSame(DESCRIPTOR_PROTO, scrubbed);
+    assertSame(DESCRIPTOR_PROTO.getField(0), scrubbed.getField(0));
+    assertEquals(DescriptorProtos.MessageOptions.newBuilder().setDeprecated(true).build(), scrubbed.getOptions());
+
+    assertSame(DescriptorProtos.DescriptorProto.getDefaultInstance(), GeneratedScrubber.of(FieldMask2.create(DESCRIPTOR_PROTO, "nested_type")).scrub(DESCRIPTOR_PROTO));
+  }
+
+  // Every level has siblings that keep everything, and the only change is at
+  // the bottom. Looking for it anew on every level would take quadratic time.
+  @Test(timeout = 10000)
+  public void testDeepChangeScrubsEverySubtreeOnce() {
+    DescriptorProtos.DescriptorProto sibling = DescriptorProtos.DescriptorProto.getDefaultInstance();
+    DescriptorProtos.DescriptorProto message = DescriptorProtos.DescriptorProto.newBuilder().setName("leaf").addReservedName("dropped").build();
+    StringBuilder path = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      DescriptorProtos.DescriptorProto.Builder level = DescriptorProtos.DescriptorProto.newBuilder();
+      for (int j = 0; j < 12500; j++) {
+        level.addNestedType(sibling);
+      }
+      message = level.addNestedType(message).build();
+      path.append("nested_type.");
+    }
+    DescriptorProtos.DescriptorProto scrubbed = GeneratedScrubber.of(FieldMask2.create(message, path + "name")).scrub(message);
+
+    for (int i = 0; i < 200; i++) {
+      assertNotSame(message, scrubbed);
+      assertSame(message.getNestedType(0), scrubbed.getNestedType(0));
+      message = message.getNestedType(12500);
+      scrubbed = scrubbed.getNestedType(12500);
+    }
+    assertEquals(DescriptorProtos.DescriptorProto.newBuilder().setName("leaf").build(), scrubbed);
+  }
+
+  @Test
+  public void testBuilderPool() {
+    FieldMask2<Type> mask = FieldMask2.create(TYPE, "source_context.file_name,fields.name");
+    GeneratedScrubber<Type> scrubber = GeneratedScrubber.of(mask);
+    BuilderPool pool = new BuilderPool();
+    for (int i = 0; i < 3; i++) {
+      assertEquals(mask.scrub(TYPE), scrubber.scrub(TYPE, pool));
+    }
+  }
+
+  private static <T extends com.google.protobuf.Message> void assertSameAsReflection(T message, String paths) {
+    FieldMask2<T> mask = FieldMask2.create(message, paths);
+    GeneratedScrubber<T> scrubber = GeneratedScrubber.of(mask);
+    assertEquals(mask.scrub(message), scrubber.scrub(message));
+    assertEquals(mask.scrub(message), scrubber.scrub(message));
+  }
+}
@@ -0,0 +1,215 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Field;
+import com.google.protobuf.Message;
+import com.google.protobuf.Struct;
+import com.google.protobuf.StructProto;
+import com.google.protobuf.Type;
+import com.google.protobuf.Value;
+import com.google.protobuf.util.JsonFormat;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonPrinterTest {
+
+  private static final DescriptorProtos.DescriptorProto DESCRIPTOR_PROTO = DescriptorProtos.DescriptorProto.newBuilder()
+          .setName("the <name> & \"quotes\"\n")
+          .setOptions(DescriptorProtos.MessageOptions.newBuilder()
+                  .setDeprecated(true)
+                  .setMapEntry(false)
+                  .build())
+          .addField(DescriptorProtos.FieldDescriptorProto.newBuilder()
+                  .setName("field")
+                  .setNumber(1)
+                  .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED)
+                  .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING)
+                  .build())
+          .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                  .addReservedName("reserved 1")
+                  .setName("the name 1")
+                  .build())
+          .addReservedName("reserved")
+          .build();
+
+  private static final Type TYPE = Type.newBuilder()
+          .setName("the type")
+          .addFields(Field.newBuilder()
+                  .setName("field")
+                  .setKind(Field.Kind.TYPE_STRING)
+                  .setNumber(1)
+                  .setPacked(true)
+                  .build())
+          .addFields(Field.newBuilder()
+                  .setName("other")
+                  .setKindValue(1234)
+                  .setNumber(2)
+                  .build())
+          .addOneofs("the oneof")
+          .build();
+
+  @Test
+  public void testGeneratedMessages() throws IOException {
+    assertSameAsJsonFormat(DESCRIPTOR_PROTO, "name,options.deprecated,field.number,field.label,field.type,enum_type,reserved_name");
+    assertSameAsJsonFormat(DESCRIPTOR_PROTO, "options,field.name,enum_type.reserved_name");
+    assertSameAsJsonFormat(DESCRIPTOR_PROTO, "nested_type");
+    assertSameAsJsonFormat(TYPE, "name,fields.kind,fields.number,fields.packed,oneofs,syntax");
+    assertSameAsJsonFormat(TYPE, "source_context,fields.json_name");
+  }
+
+  @Test
+  public void testMapsAndScalars() throws IOException {
+    Message message = scalarsMessage();
+    assertSameAsJsonFormat(message, "i64,u32,u64,f,d,b,bytes,e,s");
+    assertSameAsJsonFormat(message, "by_name.value.i64,by_id");
+    assertSameAsJsonFormat(message, "by_name.key,by_name.value.s");
+    assertSameAsJsonFormat(message, "struct.fields.value.string_value,children.s,children.children");
+    assertSameAsJsonFormat(message, "struct,choice_a,choice_b");
+  }
+
+  @Test
+  public void testMapEntriesWithoutKeys() throws IOException {
+    // Printed from the scrubbed field, where generated maps merge the entries under the default key
+    Message message = scalarsMessage();
+    assertSameAsJsonFormat(message, "by_name.value.s,by_id.value");
+    assertSameAsJsonFormat(message, "by_name.value,children.by_id.value");
+    assertSameAsJsonFormat(message, "by_id.value,by_name[\"one\"].s");
+  }
+
+  @Test
+  public void testWriteTo() throws IOException {
+    FieldMask2<DescriptorProtos.DescriptorProto> mask = FieldMask2.create(DESCRIPTOR_PROTO, "name,options");
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    mask.jsonPrinter().writeTo(DESCRIPTOR_PROTO, output);
+    assertEquals(JsonFormat.printer().print(mask.scrub(DESCRIPTOR_PROTO)), new String(output.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private static Message scalarsMessage() {
+    Descriptors.Descriptor descriptor = scalarsDescriptor();
+    DynamicMessage leaf = DynamicMessage.newBuilder(descriptor)
+            .setField(descriptor.findFieldByName("s"), "leaf")
+            .setField(descriptor.findFieldByName("i64"), 7L)
+            .build();
+    Descriptors.FieldDescriptor byName = descriptor.findFieldByName("by_name");
+    Descriptors.FieldDescriptor byId = descriptor.findFieldByName("by_id");
+    return DynamicMessage.newBuilder(descriptor)
+            .setField(descriptor.findFieldByName("i64"), -12345678901L)
+            .setField(descriptor.findFieldByName("u32"), -1)
+            .setField(descriptor.findFieldByName("u64"), -1L)
+            .setField(descriptor.findFieldByName("f"), Float.NaN)
+            .setField(descriptor.findFieldByName("d"), 1.5e-7)
+            .setField(descriptor.findFieldByName("b"), true)
+            .setField(descriptor.findFieldByName("bytes"), ByteString.copyFromUtf8("bytes?"))
+            .setField(descriptor.findFieldByName("e"), descriptor.findFieldByName("e").getEnumType().findValueByNumber(2))
+            .setField(descriptor.findFieldByName("s"), "tab\there   'single' =")
+            .addRepeatedField(byName, mapEntry(byName, "one", leaf))
+            .addRepeatedField(byName, mapEntry(byName, "two", DynamicMessage.getDefaultInstance(descriptor)))
+            .addRepeatedField(byId, mapEntry(byId, 3, "three"))
+            .addRepeatedField(byId, mapEntry(byId, -4, "minus four"))
+            .setField(descriptor.findFieldByName("struct"), Struct.newBuilder()
+                    .putFields("a", Value.newBuilder().setStringValue("x").build())
+                    .putFields("b", Value.newBuilder().setNumberValue(1).build())
+                    .build())
+            .addRepeatedField(descriptor.findFieldByName("children"), DynamicMessage.newBuilder(descriptor)
+                    .setField(descriptor.findFieldByName("s"), "child")
+                    .addRepeatedField(descriptor.findFieldByName("children"), leaf)
+                    .build())
+            .setField(descriptor.findFieldByName("choice_b"), "b")
+            .build();
+  }
+
+  private static DynamicMessage mapEntry(Descriptors.FieldDescriptor field, Object key, Object value) {
+    Descriptors.Descriptor entry = field.getMessageType();
+    return DynamicMessage.newBuilder(entry)
+            .setField(entry.findFieldByName("key"), key)
+            .setField(entry.findFieldByName("value"), value)
+            .build();
+  }
+
+  private static Descriptors.Descriptor scalarsDescriptor() {
+    DescriptorProtos.DescriptorProto.Builder message = DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("Scalars")
+            .addField(field("i64", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT64))
+            .addField(field("u32", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_UINT32))
+            .addField(field("u64", 3, DescriptorProtos.FieldDescriptorProto.Type.TYPE_FIXED64))
+            .addField(field("f", 4, DescriptorProtos.FieldDescriptorProto.Type.TYPE_FLOAT))
+            .addField(field("d", 5, DescriptorProtos.FieldDescriptorProto.Type.TYPE_DOUBLE))
+            .addField(field("b", 6, DescriptorProtos.FieldDescriptorProto.Type.TYPE_BOOL))
+            .addField(field("bytes", 7, DescriptorProtos.FieldDescriptorProto.Type.TYPE_BYTES))
+            .addField(field("e", 8, DescriptorProtos.FieldDescriptorProto.Type.TYPE_ENUM).setTypeName("Color"))
+            // Declared out of number order on purpose
+            .addField(field("s", 20, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING))
+            .addField(field("by_name", 9, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE)
+                    .setTypeName("Scalars.ByNameEntry")
+                    .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED))
+            .addField(field("by_id", 10, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE)
+                    .setTypeName("Scalars.ByIdEntry")
+                    .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED))
+            .addField(field("struct", 11, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE)
+                    .setTypeName(".google.protobuf.Struct"))
+            .addField(field("children", 12, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE)
+                    .setTypeName("Scalars")
+                    .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED))
+            .addField(field("choice_a", 13, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING).setOneofIndex(0))
+            .addField(field("choice_b", 14, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING).setOneofIndex(0))
+            .addOneofDecl(DescriptorProtos.OneofDescriptorProto.newBuilder().setName("choice"))
+            .addNestedType(mapEntry("ByNameEntry", DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING,
+                    field("value", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE).setTypeName("Scalars")))
+            .addNestedType(mapEntry("ByIdEntry", DescriptorProtos.FieldDescriptorProto.Type.TYPE_SINT32,
+                    field("value", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING)));
+    DescriptorProtos.FileDescriptorProto file = DescriptorProtos.FileDescriptorProto.newBuilder()
+            .setName("scalars.proto")
+            .setSyntax("proto3")
+            .addDependency("google/protobuf/struct.proto")
+            .addMessageType(message)
+            .addEnumType(DescriptorProtos.EnumDescriptorProto.newBuilder()
+                    .setName("Color")
+                    .addValue(DescriptorProtos.EnumValueDescriptorProto.newBuilder().setName("NONE").setNumber(0))
+                    .addValue(DescriptorProtos.EnumValueDescriptorProto.newBuilder().setName("RED").setNumber(1))
+                    .addValue(DescriptorProtos.EnumValueDescriptorProto.newBuilder().setName("BLUE").setNumber(2)))
+            .build();
+    try {
+      return Descriptors.FileDescriptor.buildFrom(file, new Descriptors.FileDescriptor[]{StructProto.getDescriptor()})
+              .findMessageTypeByName("Scalars");
+    } catch (Descriptors.DescriptorValidationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static DescriptorProtos.DescriptorProto.Builder mapEntry(String name, DescriptorProtos.FieldDescriptorProto.Type keyType, DescriptorProtos.FieldDescriptorProto.Builder value) {
+    return DescriptorProtos.DescriptorProto.newBuilder()
+            .setName(name)
+            .setOptions(DescriptorProtos.MessageOptions.newBuilder().setMapEntry(true))
+            .addField(field("key", 1, keyType))
+            .addField(value);
+  }
+
+  private static DescriptorProtos.FieldDescriptorProto.Builder field(String name, int number, DescriptorProtos.FieldDescriptorProto.Type type) {
+    return DescriptorProtos.FieldDescriptorProto.newBuilder()
+            .setName(name)
+            .setNumber(number)
+            .setType(type)
+            .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL);
+  }
+
+  private static <T extends Message> void assertSameAsJsonFormat(T message, String paths) throws IOException {
+    FieldMask2<T> mask = FieldMask2.create(message, paths);
+    T scrubbed = mask.scrub(message);
+    JsonPrinter<T> printer = mask.jsonPrinter();
+    assertEquals(JsonFormat.printer().print(scrubbed), printer.print(message));
+    assertEquals(JsonFormat.printer().includingDefaultValueFields().print(scrubbed),
+            printer.includingDefaultValueFields().print(message));
+    assertEquals(JsonFormat.printer().preservingProtoFieldNames().printingEnumsAsInts().print(scrubbed),
+            printer.preservingProtoFieldNames().printingEnumsAsInts().print(message));
+    assertEquals(JsonFormat.printer().omittingInsignificantWhitespace().includingDefaultValueFields().print(scrubbed),
+            printer.omittingInsignificantWhitespace().includingDefaultValueFields().print(message));
+  }
+}
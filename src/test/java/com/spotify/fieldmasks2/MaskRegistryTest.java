@@ -0,0 +1,109 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Type;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MaskRegistryTest {
+
+  private static final DescriptorProtos.DescriptorProto TEMPLATE = DescriptorProtos.DescriptorProto.getDefaultInstance();
+  private static final String[] PATHS = {"name", "field.name", "field.number,nested_type.name", "options", "enum_type.value.name"};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testWriteAndOpen() throws IOException {
+    Map<String, FieldMask2<?>> masks = new HashMap<>();
+    for (int i = 0; i < 1000; i++) {
+      masks.put("policy-" + i, FieldMask2.create(TEMPLATE, PATHS[i % PATHS.length]));
+    }
+    masks.put("émoji 😀", FieldMask2.create(Type.getDefaultInstance(), "name,options.value"));
+    masks.put("", FieldMask2.create(TEMPLATE));
+    Path path = folder.getRoot().toPath().resolve("masks.fm2r");
+    MaskRegistry.write(path, masks);
+
+    MaskRegistry registry = MaskRegistry.open(path);
+    assertEquals(1002, registry.size());
+    assertEquals(masks.keySet(), new HashSet<>(registry.names()));
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(masks.get("policy-" + i), registry.get("policy-" + i, TEMPLATE));
+    }
+    assertSame(registry.get("policy-7", TEMPLATE), registry.get("policy-7", TEMPLATE));
+    assertEquals(masks.get("émoji 😀"), registry.get("émoji 😀", Type.getDefaultInstance()));
+    assertEquals(masks.get(""), registry.get("", TEMPLATE));
+    assertEquals("google.protobuf.Type", registry.messageType("émoji 😀"));
+    assertTrue(registry.contains("policy-999"));
+    assertFalse(registry.contains("policy-1000"));
+    assertNull(registry.get("policy-1000", TEMPLATE));
+    assertNull(registry.messageType("policy-1000"));
+  }
+
+  @Test
+  public void testSameTypeFromAnotherPool() throws Exception {
+    Path path = folder.getRoot().toPath().resolve("masks.fm2r");
+    MaskRegistry.write(path, Collections.singletonMap("names", FieldMask2.create(TEMPLATE, "name,field.name")));
+    DynamicMessage dynamic = DynamicMessage.getDefaultInstance(DelimitedFileScrubber.findMessageType(
+            DescriptorProtos.FileDescriptorSet.newBuilder().addFile(DescriptorProtos.getDescriptor().toProto()).build(),
+            "google.protobuf.DescriptorProto"));
+
+    MaskRegistry registry = MaskRegistry.open(path);
+    assertEquals(FieldMask2.create(TEMPLATE, "name,field.name"), registry.get("names", TEMPLATE));
+    assertEquals(FieldMask2.create(dynamic, "name,field.name"), registry.get("names", dynamic));
+    assertSame(registry.get("names", dynamic), registry.get("names", dynamic));
+    assertSame(registry.get("names", TEMPLATE), registry.get("names", TEMPLATE));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWrongMessageType() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("masks.fm2r");
+    MaskRegistry.write(path, Collections.singletonMap("names", FieldMask2.create(TEMPLATE, "name")));
+    MaskRegistry.open(path).get("names", Type.getDefaultInstance());
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotARegistry() throws IOException {
+    Path path = folder.newFile().toPath();
+    Files.write(path, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+    MaskRegistry.open(path);
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedRegistry() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("masks.fm2r");
+    MaskRegistry.write(path, Collections.singletonMap("names", FieldMask2.create(TEMPLATE, "name,field.name")));
+    byte[] bytes = Files.readAllBytes(path);
+    Files.write(path, Arrays.copyOf(bytes, bytes.length - 1));
+    MaskRegistry.open(path);
+  }
+
+  @Test(expected = IOException.class)
+  public void testCorruptIndexEntry() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("masks.fm2r");
+    MaskRegistry.write(path, Collections.singletonMap("names", FieldMask2.create(TEMPLATE, "name,field.name")));
+    byte[] bytes = Files.readAllBytes(path);
+    // The offset of the first name points back into the header
+    ByteBuffer.wrap(bytes).putInt(12, 0);
+    Files.write(path, bytes);
+    MaskRegistry.open(path);
+  }
+}
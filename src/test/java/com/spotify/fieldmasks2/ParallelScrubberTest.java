@@ -0,0 +1,68 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.DescriptorProtos;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParallelScrubberTest {
+
+  private static final DescriptorProtos.FileDescriptorProto FILE = file(5000);
+
+  @Test
+  public void testSameAsSequential() {
+    assertSameAsSequential(ParallelScrubber.of(mask("name,message_type.name,message_type.field.name,message_type.field.number")));
+    assertSameAsSequential(ParallelScrubber.of(mask("message_type.field")).withThreshold(10));
+    assertSameAsSequential(ParallelScrubber.of(mask("message_type.nested_type")).withThreshold(1));
+  }
+
+  @Test
+  public void testCustomExecutors() {
+    ForkJoinPool pool = new ForkJoinPool(3);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      FieldMask2<DescriptorProtos.FileDescriptorProto> mask = mask("message_type.field.name,message_type.field.options.packed");
+      assertSameAsSequential(ParallelScrubber.of(mask).withExecutor(pool).withThreshold(100));
+      assertSameAsSequential(ParallelScrubber.of(mask).withExecutor(executor).withThreshold(100));
+      assertSameAsSequential(ParallelScrubber.of(mask).withExecutor(Runnable::run).withThreshold(100));
+    } finally {
+      pool.shutdown();
+      executor.shutdown();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidThreshold() {
+    ParallelScrubber.of(mask("name")).withThreshold(0);
+  }
+
+  private static void assertSameAsSequential(ParallelScrubber<DescriptorProtos.FileDescriptorProto> scrubber) {
+    assertEquals(scrubber.getMask().scrub(FILE), scrubber.scrub(FILE));
+  }
+
+  private static FieldMask2<DescriptorProtos.FileDescriptorProto> mask(String paths) {
+    return FieldMask2.create(DescriptorProtos.FileDescriptorProto.getDefaultInstance(), paths);
+  }
+
+  private static DescriptorProtos.FileDescriptorProto file(int fields) {
+    DescriptorProtos.DescriptorProto.Builder message = DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("Message")
+            .addNestedType(DescriptorProtos.DescriptorProto.newBuilder().setName("Nested"));
+    for (int i = 0; i < fields; i++) {
+      message.addField(DescriptorProtos.FieldDescriptorProto.newBuilder()
+              .setName("field_" + i)
+              .setNumber(i + 1)
+              .setJsonName("field" + i)
+              .setOptions(DescriptorProtos.FieldOptions.newBuilder().setPacked(i % 2 == 0)));
+    }
+    return DescriptorProtos.FileDescriptorProto.newBuilder()
+            .setName("file.proto")
+            .setPackage("the.package")
+            .addMessageType(message)
+            .build();
+  }
+}
@@ -0,0 +1,115 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.DescriptorProtos;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScrubCacheTest {
+
+  private static final FieldMask2<DescriptorProtos.DescriptorProto> MASK = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,field.name");
+
+  @Test
+  public void testSameResultForSameInstance() {
+    ScrubCache<DescriptorProtos.DescriptorProto> cache = new ScrubCache<>(MASK, 10);
+    DescriptorProtos.DescriptorProto message = message(1);
+
+    DescriptorProtos.DescriptorProto first = cache.scrub(message);
+    assertEquals(MASK.scrub(message), first);
+    assertSame(first, cache.scrub(message));
+    // An equal but different instance is a different key
+    assertEquals(first, cache.scrub(message(1)));
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.stats().hitCount());
+    assertEquals(2, cache.stats().missCount());
+  }
+
+  @Test
+  public void testUnchangedInputIsNotCached() {
+    ScrubCache<DescriptorProtos.DescriptorProto> cache = new ScrubCache<>(MASK, 10);
+    DescriptorProtos.DescriptorProto message = DescriptorProtos.DescriptorProto.newBuilder().setName("name").build();
+
+    assertSame(message, cache.scrub(message));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testEvictsOldestEntries() {
+    ScrubCache<DescriptorProtos.DescriptorProto> cache = new ScrubCache<>(MASK, 2);
+    DescriptorProtos.DescriptorProto first = message(1);
+    cache.scrub(first);
+    cache.scrub(message(2));
+    cache.scrub(message(3));
+
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.stats().evictionCount());
+    cache.scrub(first);
+    assertEquals(4, cache.stats().missCount());
+  }
+
+  @Test
+  public void testConcurrentScrubs() throws Exception {
+    ScrubCache<DescriptorProtos.DescriptorProto> cache = new ScrubCache<>(MASK, 50);
+    List<DescriptorProtos.DescriptorProto> messages = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      messages.add(message(i));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 4; thread++) {
+        futures.add(executor.submit(() -> {
+          for (int round = 0; round < 20; round++) {
+            for (DescriptorProtos.DescriptorProto message : messages) {
+              assertEquals(MASK.scrub(message), cache.scrub(message));
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    CacheStats stats = cache.stats();
+    assertEquals(8000, stats.requestCount());
+    // Eviction is exact, so every insert beyond the first 50 evicted one entry
+    assertEquals(50, cache.size());
+    assertTrue(stats.missCount() >= 100);
+    assertTrue(stats.evictionCount() <= stats.missCount() - 50);
+  }
+
+  @Test
+  public void testInvalidateAll() {
+    ScrubCache<DescriptorProtos.DescriptorProto> cache = new ScrubCache<>(MASK, 2);
+    List<DescriptorProtos.DescriptorProto> messages = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      messages.add(message(i));
+      cache.scrub(messages.get(i));
+    }
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+
+    for (DescriptorProtos.DescriptorProto message : messages) {
+      cache.scrub(message);
+    }
+    assertEquals(2, cache.size());
+    assertEquals(2, cache.stats().evictionCount());
+  }
+
+  private static DescriptorProtos.DescriptorProto message(int i) {
+    return DescriptorProtos.DescriptorProto.newBuilder()
+            .setName("message " + i)
+            .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("field").setNumber(i))
+            .build();
+  }
+}
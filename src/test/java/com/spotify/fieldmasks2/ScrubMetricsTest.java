@@ -0,0 +1,113 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.DescriptorProtos;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ScrubMetricsTest {
+
+  private static final DescriptorProtos.DescriptorProto MESSAGE = DescriptorProtos.DescriptorProto.newBuilder()
+          .setName("message")
+          .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("a").setNumber(1))
+          .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("b").setNumber(2))
+          .addReservedName("reserved")
+          .build();
+
+  @After
+  public void removeListener() {
+    FieldMask2.setListener(null);
+  }
+
+  @Test
+  public void testEventPerCall() {
+    List<ScrubEvent> events = new ArrayList<>();
+    FieldMask2.setListener((mask, event) -> events.add(event));
+    FieldMask2<DescriptorProtos.DescriptorProto> mask = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,field.name");
+
+    DescriptorProtos.DescriptorProto scrubbed = mask.scrub(MESSAGE);
+    mask.merge(MESSAGE, DescriptorProtos.DescriptorProto.newBuilder());
+
+    assertEquals(2, events.size());
+    for (ScrubEvent event : events) {
+      assertEquals(7, event.fieldsVisited());
+      assertEquals(4, event.fieldsCopied());
+      assertEquals(2, event.repeatedElements());
+      assertEquals(MESSAGE.getSerializedSize() - scrubbed.getSerializedSize(), event.bytesRemoved());
+    }
+    assertEquals(ScrubEvent.Kind.SCRUB, events.get(0).kind());
+    assertEquals(ScrubEvent.Kind.MERGE, events.get(1).kind());
+  }
+
+  @Test
+  public void testMetricsPerMask() {
+    ScrubMetrics metrics = new ScrubMetrics(1);
+    FieldMask2.setListener(metrics);
+    FieldMask2<DescriptorProtos.DescriptorProto> names = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,field.name");
+    FieldMask2<DescriptorProtos.DescriptorProto> present = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,field,reserved_name");
+
+    names.scrub(MESSAGE);
+    FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "field.name,name").scrub(MESSAGE);
+    names.scrubAll(Arrays.asList(MESSAGE, MESSAGE));
+    present.scrub(MESSAGE);
+    FieldMask2.setListener(null);
+    names.scrub(MESSAGE);
+
+    ScrubMetrics.MaskMetrics namesMetrics = metrics.get(names);
+    assertEquals(4, namesMetrics.scrubCount());
+    assertEquals(0, namesMetrics.mergeCount());
+    assertEquals(4, namesMetrics.sampledCount());
+    assertEquals(28, namesMetrics.fieldsVisited());
+    assertEquals(4, Arrays.stream(namesMetrics.latencyHistogram()).sum());
+    assertEquals(0, metrics.get(present).bytesRemoved());
+    assertEquals(2, metrics.masks().size());
+    assertNull(metrics.get(FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name")));
+  }
+
+  @Test
+  public void testEveryEngineReports() {
+    List<ScrubEvent> events = new ArrayList<>();
+    FieldMask2.setListener((mask, event) -> events.add(event));
+    FieldMask2<DescriptorProtos.DescriptorProto> mask = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,field.name");
+
+    GeneratedScrubber.of(mask).scrub(MESSAGE);
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      ParallelScrubber.of(mask).withExecutor(pool).withThreshold(1).scrub(MESSAGE);
+    } finally {
+      pool.shutdown();
+    }
+    FieldMask2.scrubAll(MESSAGE, Arrays.asList(mask, mask));
+
+    assertEquals(3, events.size());
+    for (ScrubEvent event : events) {
+      assertEquals(7, event.fieldsVisited());
+      assertEquals(2, event.repeatedElements());
+    }
+  }
+
+  @Test
+  public void testMaskListener() {
+    List<ScrubEvent> global = new ArrayList<>();
+    List<ScrubEvent> own = new ArrayList<>();
+    FieldMask2.setListener((mask, event) -> global.add(event));
+    FieldMask2<DescriptorProtos.DescriptorProto> mask = FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name,field.name");
+    FieldMask2<DescriptorProtos.DescriptorProto> listened = mask.withListener((m, event) -> own.add(event));
+
+    listened.scrub(MESSAGE);
+    listened.merge(MESSAGE, DescriptorProtos.DescriptorProto.newBuilder());
+    mask.scrub(MESSAGE);
+
+    assertEquals(mask, listened);
+    assertEquals(mask.scrub(MESSAGE), listened.scrub(MESSAGE));
+    assertEquals(3, own.size());
+    assertEquals(2, global.size());
+  }
+}
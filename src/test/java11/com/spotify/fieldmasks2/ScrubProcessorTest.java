@@ -0,0 +1,64 @@
+package com.spotify.fieldmasks2;
+
+import com.google.protobuf.DescriptorProtos;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScrubProcessorTest {
+
+  private static final FieldMask2<DescriptorProtos.DescriptorProto> MASK =
+          FieldMask2.create(DescriptorProtos.DescriptorProto.getDefaultInstance(), "name");
+
+  @Test
+  public void testScrubsInOrderWithSmallBuffer() throws Exception {
+    List<DescriptorProtos.DescriptorProto> messages = new ArrayList<>();
+    List<DescriptorProtos.DescriptorProto> expected = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      DescriptorProtos.DescriptorProto message = DescriptorProtos.DescriptorProto.newBuilder()
+              .setName("message " + i)
+              .addReservedName("reserved")
+              .build();
+      messages.add(message);
+      expected.add(MASK.scrub(message));
+    }
+
+    ScrubProcessor<DescriptorProtos.DescriptorProto> processor = new ScrubProcessor<>(MASK, ForkJoinPool.commonPool(), 2);
+    List<DescriptorProtos.DescriptorProto> received = new ArrayList<>();
+    CompletableFuture<Void> done = processor.consume(received::add);
+    try (SubmissionPublisher<DescriptorProtos.DescriptorProto> upstream = new SubmissionPublisher<>()) {
+      upstream.subscribe(processor);
+      messages.forEach(upstream::submit);
+    }
+    done.get(10, TimeUnit.SECONDS);
+    assertEquals(expected, received);
+  }
+
+  @Test
+  public void testPropagatesErrors() throws InterruptedException, TimeoutException {
+    ScrubProcessor<DescriptorProtos.DescriptorProto> processor = new ScrubProcessor<>(MASK);
+    CompletableFuture<Void> done = processor.consume(message -> {
+    });
+    SubmissionPublisher<DescriptorProtos.DescriptorProto> upstream = new SubmissionPublisher<>();
+    upstream.subscribe(processor);
+    upstream.closeExceptionally(new IllegalStateException("upstream failed"));
+    try {
+      done.get(10, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+      return;
+    }
+    throw new AssertionError("Expected the error to reach the subscriber");
+  }
+}